@@ -0,0 +1,142 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the steps that turn a MODS record and its solr metadata into a
+ * serialized add document, for each MODS fixture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddDocBenchmark {
+
+    @Param({"audio-simple", "video-rich", "minimal"})
+    public String mods;
+
+    private StubRepository repository;
+
+    private File workDirectory;
+
+    private AvalonIndexer indexer;
+
+    private byte[] modsBytes;
+
+    private HydraSolrManager.AvalonRecord record;
+
+    private HydraSolrManager.AvalonRecord collection;
+
+    private List<HydraSolrManager.AvalonRecord> sections;
+
+    private AddDocBuilder completeAddDoc;
+
+    private AddDocBuilder transformedMods;
+
+    private AddDocWriter writer;
+
+    @Setup
+    public void setUp() throws Exception {
+        repository = StubRepository.fromFixtures();
+        workDirectory = Files.createTempDirectory("benchmark").toFile();
+        indexer = new AvalonIndexer(repository.getIndexerConfiguration(workDirectory));
+
+        modsBytes = Fixtures.readMods(mods);
+        final Map<String, HydraSolrManager.AvalonRecord> records = Fixtures.readRecords("records");
+        for (Map.Entry<String, String> e : Fixtures.MODS_BY_ID.entrySet()) {
+            if (e.getValue().equals(mods)) {
+                record = records.get(e.getKey());
+            }
+        }
+        collection = records.get(record.getCollectionId());
+        sections = new ArrayList<HydraSolrManager.AvalonRecord>();
+        for (String id : record.getSectionIds()) {
+            sections.add(records.get(id));
+        }
+
+        transformedMods = transform();
+        completeAddDoc = transform();
+        indexer.generateAddDoc(record, completeAddDoc, false, collection, sections);
+        writer = new AddDocWriter();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        indexer.close();
+        repository.stop();
+        FileUtils.deleteDirectory(workDirectory);
+    }
+
+    private AddDocBuilder transform() throws Exception {
+        return indexer.getSolrAddDocFromMods(new ByteArrayInputStream(modsBytes));
+    }
+
+    /**
+     * The XSLT transformation of the MODS record alone.
+     */
+    @Benchmark
+    public AddDocBuilder transformMods() throws Exception {
+        return transform();
+    }
+
+    /**
+     * The complete generation of an add document from MODS and already
+     * fetched solr metadata: transformation, added fields and serialization.
+     */
+    @Benchmark
+    public byte[] generateAddDoc() throws Exception {
+        return indexer.generateAddDoc(record, transform(), false, collection, sections);
+    }
+
+    /**
+     * Generation of an add document including fetching the MODS and section
+     * metadata over HTTP (from the stub repository); the collection lookup
+     * is served from the metadata cache after the first invocation.
+     */
+    @Benchmark
+    public byte[] generateAddDocOverHttp() throws Exception {
+        return indexer.generateAddDoc(record);
+    }
+
+    /**
+     * Serialization of a complete add document.
+     */
+    @Benchmark
+    public byte[] serializeAddDoc() throws Exception {
+        return writer.write(completeAddDoc);
+    }
+
+    /**
+     * Adds a field to a transformed record (removing it again so that the
+     * document doesn't grow).
+     */
+    @Benchmark
+    public AddDocBuilder addField() {
+        final int count = transformedMods.getFieldCount();
+        transformedMods.addField("format_facet", "Online Video");
+        transformedMods.truncate(count);
+        return transformedMods;
+    }
+}
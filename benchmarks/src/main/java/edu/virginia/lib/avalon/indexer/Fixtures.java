@@ -0,0 +1,82 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.impl.XMLResponseParser;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * Access to the checked-in corpus of MODS records and solr responses under
+ * fixtures/ on the classpath (kept with the indexer's test resources).
+ */
+class Fixtures {
+
+    /**
+     * The MODS fixture for each media object in fixtures/solr/records.xml.
+     */
+    static final Map<String, String> MODS_BY_ID = new LinkedHashMap<String, String>();
+    static {
+        MODS_BY_ID.put("7m01bk63b", "audio-simple");
+        MODS_BY_ID.put("9k41zd52x", "video-rich");
+        MODS_BY_ID.put("3r074v28g", "minimal");
+    }
+
+    static final String COLLECTION_ID = "vc5003abc";
+
+    static final String BLACKLISTED_COLLECTION_ID = "bl0001col";
+
+    static byte[] read(final String path) throws IOException {
+        final InputStream is = Fixtures.class.getClassLoader().getResourceAsStream("fixtures/" + path);
+        if (is == null) {
+            throw new IOException("No fixture found at " + path + "!");
+        }
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    static byte[] readMods(final String name) throws IOException {
+        return read("mods/" + name + ".xml");
+    }
+
+    /**
+     * Parses a solr response fixture (in solr's XML response format).
+     */
+    @SuppressWarnings("unchecked")
+    static QueryResponse readQueryResponse(final String name) throws IOException {
+        final InputStream is = Fixtures.class.getClassLoader().getResourceAsStream("fixtures/solr/" + name + ".xml");
+        if (is == null) {
+            throw new IOException("No solr fixture found named " + name + "!");
+        }
+        try {
+            return new QueryResponse(new XMLResponseParser().processResponse(new InputStreamReader(is, "UTF-8")),
+                    null);
+        } finally {
+            is.close();
+        }
+    }
+
+    static List<SolrDocument> readSolrDocuments(final String name) throws IOException {
+        return new ArrayList<SolrDocument>(readQueryResponse(name).getResults());
+    }
+
+    static Map<String, HydraSolrManager.AvalonRecord> readRecords(final String name) throws IOException {
+        final Map<String, HydraSolrManager.AvalonRecord> records
+                = new LinkedHashMap<String, HydraSolrManager.AvalonRecord>();
+        for (SolrDocument doc : readSolrDocuments(name)) {
+            final HydraSolrManager.AvalonRecord record = new HydraSolrManager.AvalonRecord(doc);
+            records.put(record.getId(), record);
+        }
+        return records;
+    }
+}
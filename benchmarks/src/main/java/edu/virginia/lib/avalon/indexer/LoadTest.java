@@ -0,0 +1,170 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Runs a complete synchronization against a StubRepository serving
+ * synthetic content, for each of a series of repository sizes, and reports
+ * the rate at which records were indexed and the peak heap use.
+ *
+ * Usage: LoadTest [--records=1000,10000,100000] [--fedora-latency-ms=0]
+ *        [--solr-latency-ms=0] [--fedora-failure-rate=0] [--stub-threads=64]
+ *        [--seed=1] [--keep] [property=value ...]
+ *
+ * Any property=value argument is added to the indexer configuration (for
+ * instance pipeline-mode=true or add-doc-store=segments).  With --keep the
+ * working directory of each run (including its metrics reports) is left in
+ * place.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        final List<Integer> sizes = new ArrayList<Integer>();
+        long fedoraLatencyMs = 0;
+        long solrLatencyMs = 0;
+        double fedoraFailureRate = 0;
+        int stubThreads = 64;
+        long seed = 1;
+        boolean keep = false;
+        final Properties overrides = new Properties();
+        for (String arg : args) {
+            if (arg.startsWith("--records=")) {
+                for (String size : arg.substring("--records=".length()).split(",")) {
+                    sizes.add(Integer.parseInt(size.trim()));
+                }
+            } else if (arg.startsWith("--fedora-latency-ms=")) {
+                fedoraLatencyMs = Long.parseLong(arg.substring("--fedora-latency-ms=".length()));
+            } else if (arg.startsWith("--solr-latency-ms=")) {
+                solrLatencyMs = Long.parseLong(arg.substring("--solr-latency-ms=".length()));
+            } else if (arg.startsWith("--fedora-failure-rate=")) {
+                fedoraFailureRate = Double.parseDouble(arg.substring("--fedora-failure-rate=".length()));
+            } else if (arg.startsWith("--stub-threads=")) {
+                stubThreads = Integer.parseInt(arg.substring("--stub-threads=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.equals("--keep")) {
+                keep = true;
+            } else if (arg.indexOf('=') > 0) {
+                overrides.setProperty(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(1000);
+            sizes.add(10000);
+            sizes.add(100000);
+        }
+
+        System.out.println("fedora latency: " + fedoraLatencyMs + "ms, solr latency: " + solrLatencyMs + "ms, "
+                + "fedora failure rate: " + fedoraFailureRate + ", configuration overrides: " + overrides);
+        System.out.println(String.format("%10s %10s %10s %12s %10s %8s %8s", "records", "indexed", "seconds",
+                "records/sec", "peak MB", "errors", "retries"));
+        for (int size : sizes) {
+            final Result result = run(size, seed, fedoraLatencyMs, solrLatencyMs, fedoraFailureRate, stubThreads,
+                    overrides, keep);
+            System.out.println(String.format("%10d %10d %10.1f %12.1f %10.1f %8d %8d", size, result.indexed,
+                    result.elapsedMs / 1000d, result.indexed * 1000d / Math.max(1, result.elapsedMs),
+                    result.peakHeapBytes / (1024d * 1024d), result.errors, result.retries));
+        }
+        System.exit(0);
+    }
+
+    private static Result run(final int size, final long seed, final long fedoraLatencyMs, final long solrLatencyMs,
+            final double fedoraFailureRate, final int stubThreads, final Properties overrides, final boolean keep)
+            throws Exception {
+        final StubRepository repository = new StubRepository(new SyntheticContent(size, seed), stubThreads);
+        repository.setLatency(fedoraLatencyMs, solrLatencyMs);
+        repository.setFedoraFailureRate(fedoraFailureRate);
+        final File directory = Files.createTempDirectory("load-test-" + size + "-").toFile();
+        try {
+            final Properties p = repository.getIndexerConfiguration(directory);
+            p.setProperty("metrics-json-file", new File(directory, "metrics.json").getPath());
+            p.setProperty("metrics-prometheus-file", new File(directory, "metrics.prom").getPath());
+            p.putAll(overrides);
+
+            // let the previous run's garbage go so it isn't counted
+            System.gc();
+            final HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            final long start = System.currentTimeMillis();
+            final AvalonIndexer indexer = new AvalonIndexer(p);
+            indexer.synchronizeAddDocRepository();
+            indexer.close();
+            final Result result = new Result();
+            result.elapsedMs = System.currentTimeMillis() - start;
+            result.peakHeapBytes = sampler.finish();
+            result.indexed = indexer.getIndexRecordCount();
+            result.errors = indexer.getErrorCount();
+            result.retries = indexer.getMetrics().getCount("retries");
+            indexer.writeMetricsReports();
+            return result;
+        } finally {
+            repository.stop();
+            if (keep) {
+                System.out.println("Results of the " + size + " record run are in " + directory);
+            } else {
+                FileUtils.deleteDirectory(directory);
+            }
+        }
+    }
+
+    private static class Result {
+        long elapsedMs;
+        long peakHeapBytes;
+        int indexed;
+        int errors;
+        long retries;
+    }
+
+    /**
+     * Samples the used heap every 50ms, keeping the maximum.  Samples miss
+     * short peaks between collections, so this is a lower bound on the peak.
+     */
+    private static class HeapSampler extends Thread {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        private volatile boolean done = false;
+
+        private volatile long peak = 0;
+
+        HeapSampler() {
+            setDaemon(true);
+            setName("heap-sampler");
+        }
+
+        public void run() {
+            while (!done) {
+                sample();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            final long used = memory.getHeapMemoryUsage().getUsed();
+            if (used > peak) {
+                peak = used;
+            }
+        }
+
+        long finish() throws InterruptedException {
+            done = true;
+            join();
+            sample();
+            return peak;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the handling of the solr metadata for records: parsing a page
+ * of query results and formatting durations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBenchmark {
+
+    private HydraSolrManager solrManager;
+
+    private QueryResponse page;
+
+    private List<HydraSolrManager.AvalonRecord> sections;
+
+    @Setup
+    public void setUp() throws Exception {
+        // never contacted; only used to parse
+        solrManager = new HydraSolrManager("http://localhost:1/solr/avalon");
+        page = Fixtures.readQueryResponse("media-object-page");
+        final Map<String, HydraSolrManager.AvalonRecord> records = Fixtures.readRecords("records");
+        sections = new ArrayList<HydraSolrManager.AvalonRecord>();
+        for (String id : Fixtures.MODS_BY_ID.keySet()) {
+            for (String sectionId : records.get(id).getSectionIds()) {
+                sections.add(records.get(sectionId));
+            }
+        }
+    }
+
+    /**
+     * Converts a page of 100 media object results into AvalonRecords.
+     */
+    @Benchmark
+    public List<HydraSolrManager.AvalonRecord> parseResultPage() {
+        final List<HydraSolrManager.AvalonRecord> records = new ArrayList<HydraSolrManager.AvalonRecord>(100);
+        solrManager.parseResultPage(page, records);
+        return records;
+    }
+
+    /**
+     * Formats the duration of each section of the media objects in the
+     * records fixture.
+     */
+    @Benchmark
+    public void getDuration(Blackhole bh) {
+        for (HydraSolrManager.AvalonRecord section : sections) {
+            bh.consume(section.getDuration());
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for fedora and the hydra solr core, serving the
+ * solr documents and MODS records of a Content over HTTP so that the
+ * indexer can be exercised (including its HTTP clients) without an avalon
+ * installation.
+ *
+ * Only what the indexer uses is implemented: MODS (descMetadata) GETs,
+ * which may be conditional on an ETag, and object HEADs at fedora-style
+ * pairtree paths, and solr queries that select the media objects modified
+ * since a date, the media objects in given collections or with given
+ * sections, the collections and master files marked as modified, or
+ * documents by quoted id or identifier, paged with cursorMark.  A fixed
+ * latency may be added to every fedora and/or solr response, and a share
+ * of fedora requests may be answered with a 503.
+ */
+class StubRepository {
+
+    static {
+        // otherwise each response written in more than one packet waits on
+        // the client's delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * The records served by a StubRepository.
+     */
+    interface Content {
+
+        int getMediaObjectCount();
+
+        /**
+         * Gets the solr document for a media object, by its position in
+         * order of modification.
+         */
+        SolrDocument getMediaObject(int index);
+
+        /**
+         * Gets the solr document with the given id, or null.
+         */
+        SolrDocument getById(String id);
+
+        /**
+         * Gets the solr document with the given (old) identifier, or null.
+         */
+        SolrDocument getByIdentifier(String identifier);
+
+        /**
+         * Gets the MODS for the object with the given id, or null.
+         */
+        byte[] getMods(String id);
+    }
+
+    private static final Pattern QUOTED = Pattern.compile("\"([^\"]*)\"");
+
+    private static final Pattern MODIFIED_SINCE = Pattern.compile("system_modified_dtsi:\\[(\\S+) TO NOW\\]");
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final Content content;
+
+    private volatile long fedoraLatencyMs = 0;
+
+    private volatile long solrLatencyMs = 0;
+
+    private volatile double fedoraFailureRate = 0;
+
+    private volatile List<String> modifiedDependencies = Collections.emptyList();
+
+    private final Random random = new Random();
+
+    StubRepository(final Content content, final int threads) throws IOException {
+        this.content = content;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/fedora/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleFedora(exchange);
+            }
+        });
+        server.createContext("/solr/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleSolr(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Creates a StubRepository serving the records in fixtures/solr/records.xml
+     * and their MODS.
+     */
+    static StubRepository fromFixtures() throws IOException {
+        final Map<String, byte[]> mods = new HashMap<String, byte[]>();
+        for (Map.Entry<String, String> e : Fixtures.MODS_BY_ID.entrySet()) {
+            mods.put(e.getKey(), Fixtures.readMods(e.getValue()));
+        }
+        return new StubRepository(new ListContent(Fixtures.readSolrDocuments("records"), mods), 8);
+    }
+
+    /**
+     * Gets a configuration for an indexer that reads from this repository
+     * and writes (to a directory store) within the given directory.
+     */
+    Properties getIndexerConfiguration(final File directory) {
+        final Properties p = new Properties();
+        p.setProperty("fedoraBase", getFedoraBase());
+        p.setProperty("username", "fedoraAdmin");
+        p.setProperty("password", "fedoraAdmin");
+        p.setProperty("hydra-solr-url", getSolrUrl());
+        p.setProperty("avalon-url", "http://avalon.example.edu");
+        p.setProperty("collection-blacklist", Fixtures.BLACKLISTED_COLLECTION_ID);
+        p.setProperty("add-doc-repository", new File(directory, "add-docs").getPath());
+        p.setProperty("add-doc-index-file", new File(directory, "add-doc-index.txt").getPath());
+        p.setProperty("last-run-file", new File(directory, "last-run.txt").getPath());
+        new File(directory, "add-docs").mkdirs();
+        return p;
+    }
+
+    void setLatency(final long fedoraLatencyMs, final long solrLatencyMs) {
+        this.fedoraLatencyMs = fedoraLatencyMs;
+        this.solrLatencyMs = solrLatencyMs;
+    }
+
+    /**
+     * Sets the share (0 - 1) of fedora requests that fail with a 503.
+     */
+    void setFedoraFailureRate(final double fedoraFailureRate) {
+        this.fedoraFailureRate = fedoraFailureRate;
+    }
+
+    String getFedoraBase() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fedora/rest/";
+    }
+
+    String getSolrUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/solr/avalon";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets the id of an object (the last path segment), or of the object
+     * whose MODS is requested.
+     */
+    private static String getObjectId(final String path) {
+        final String[] segments = path.split("/");
+        if (segments[segments.length - 1].equals("descMetadata")) {
+            return segments[segments.length - 2];
+        }
+        return segments[segments.length - 1];
+    }
+
+    private static void sleep(final long ms) {
+        if (ms > 0) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void handleFedora(final HttpExchange exchange) throws IOException {
+        try {
+            sleep(fedoraLatencyMs);
+            final String path = exchange.getRequestURI().getPath();
+            final byte[] mods = content.getMods(getObjectId(path));
+            if (fedoraFailureRate > 0 && random.nextDouble() < fedoraFailureRate) {
+                exchange.sendResponseHeaders(503, -1);
+            } else if (mods == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else if (!path.endsWith("/descMetadata")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                final String eTag = "\"" + Integer.toHexString(Arrays.hashCode(mods)) + "\"";
+                exchange.getResponseHeaders().add("ETag", eTag);
+                if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    // the JDK's server drops the connection after a 304, so
+                    // the client mustn't try to reuse it
+                    exchange.getResponseHeaders().add("Connection", "close");
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    exchange.getResponseHeaders().add("Content-Type", "application/xml");
+                    exchange.sendResponseHeaders(200, mods.length);
+                    exchange.getResponseBody().write(mods);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleSolr(final HttpExchange exchange) throws IOException {
+        try {
+            sleep(solrLatencyMs);
+            final Map<String, String> params = parseParameters(exchange.getRequestURI().getRawQuery());
+            final String q = params.get("q");
+            final int rows = params.containsKey("rows") ? Integer.parseInt(params.get("rows")) : 10;
+            final String cursorMark = params.containsKey("cursorMark") ? params.get("cursorMark") : "*";
+            final int start = cursorMark.equals("*") ? 0 : Integer.parseInt(cursorMark.substring(1));
+
+            final SolrDocumentList results = new SolrDocumentList();
+            results.setStart(start);
+            if (q.contains("has_model_ssim:\"MediaObject\"") && q.contains("isMemberOfCollection_ssim:")) {
+                final List<SolrDocument> matches = findDependentMediaObjects(q);
+                results.setNumFound(matches.size());
+                for (int i = start; i < matches.size() && i < start + rows; i ++) {
+                    results.add(matches.get(i));
+                }
+            } else if (q.contains("has_model_ssim:\"MediaObject\"")) {
+                final int first = findFirstModifiedSince(q);
+                results.setNumFound(content.getMediaObjectCount() - first);
+                for (int i = first + start; i < content.getMediaObjectCount() && i < first + start + rows; i ++) {
+                    results.add(content.getMediaObject(i));
+                }
+            } else {
+                final List<SolrDocument> matches = q.contains("has_model_ssim:(\"Admin::Collection\"")
+                        ? getModifiedDependencies() : findByQuotedIds(q);
+                results.setNumFound(matches.size());
+                for (int i = start; i < matches.size() && i < start + rows; i ++) {
+                    results.add(matches.get(i));
+                }
+            }
+
+            final NamedList<Object> header = new NamedList<Object>();
+            header.add("status", 0);
+            header.add("QTime", 0);
+            final NamedList<Object> response = new NamedList<Object>();
+            response.add("responseHeader", header);
+            response.add("response", results);
+            if (params.containsKey("cursorMark")) {
+                response.add("nextCursorMark", "o" + (start + results.size()));
+            }
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(response, body);
+
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, body.size());
+            final OutputStream os = exchange.getResponseBody();
+            body.writeTo(os);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Gets the index of the first media object modified at or after the
+     * date in a system_modified_dtsi range of the query (or 0 if there is
+     * none), by a binary search of the media objects in order of
+     * modification.
+     */
+    private int findFirstModifiedSince(final String q) throws IOException {
+        final Matcher m = MODIFIED_SINCE.matcher(q);
+        if (!m.find()) {
+            return 0;
+        }
+        final Date since;
+        try {
+            since = HydraSolrManager.parseISO8601Date(m.group(1));
+        } catch (ParseException ex) {
+            throw new IOException(ex);
+        }
+        int low = 0;
+        int high = content.getMediaObjectCount();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (((Date) content.getMediaObject(middle).getFieldValue("system_modified_dtsi")).before(since)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the media objects in any collection, or with any section, whose
+     * id is quoted in the query.  Every media object is examined, so this
+     * is only suitable for small repositories.
+     */
+    private List<SolrDocument> findDependentMediaObjects(final String q) {
+        final Set<String> ids = new HashSet<String>();
+        final Matcher m = QUOTED.matcher(q);
+        while (m.find()) {
+            ids.add(m.group(1));
+        }
+        final List<SolrDocument> matches = new ArrayList<SolrDocument>();
+        for (int i = 0; i < content.getMediaObjectCount(); i ++) {
+            final SolrDocument doc = content.getMediaObject(i);
+            if (containsAny(doc.getFieldValues("isMemberOfCollection_ssim"), ids)
+                    || containsAny(doc.getFieldValues("section_id_ssim"), ids)) {
+                matches.add(doc);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean containsAny(final Collection<Object> values, final Set<String> ids) {
+        if (values != null) {
+            for (Object value : values) {
+                if (ids.contains(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the collections and sections (master files) with the given ids
+     * as modified, so that they're returned by queries for collections and
+     * master files modified since any date.  The documents themselves come
+     * from the Content as usual.
+     */
+    void setModifiedDependencies(final String... ids) {
+        modifiedDependencies = Arrays.asList(ids);
+    }
+
+    private List<SolrDocument> getModifiedDependencies() {
+        final List<SolrDocument> docs = new ArrayList<SolrDocument>();
+        for (String id : modifiedDependencies) {
+            final SolrDocument doc = content.getById(id);
+            if (doc != null) {
+                docs.add(doc);
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Finds the documents for each quoted value in a query, treating them as
+     * identifiers if the query is on identifier_ssim and otherwise as ids.
+     */
+    private List<SolrDocument> findByQuotedIds(final String q) {
+        final boolean byIdentifier = q.contains("identifier_ssim:");
+        final Set<SolrDocument> matches = new LinkedHashSet<SolrDocument>();
+        final Matcher m = QUOTED.matcher(q);
+        while (m.find()) {
+            final SolrDocument doc = byIdentifier ? content.getByIdentifier(m.group(1)) : content.getById(m.group(1));
+            if (doc != null) {
+                matches.add(doc);
+            }
+        }
+        return new ArrayList<SolrDocument>(matches);
+    }
+
+    private static Map<String, String> parseParameters(final String query) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<String, String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                final int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Content held in memory: a list of solr documents (media objects being
+     * those with sections) and the MODS for each media object.
+     */
+    static class ListContent implements Content {
+
+        private final List<SolrDocument> mediaObjects = new ArrayList<SolrDocument>();
+
+        private final Map<String, SolrDocument> byId = new HashMap<String, SolrDocument>();
+
+        private final Map<String, SolrDocument> byIdentifier = new HashMap<String, SolrDocument>();
+
+        private final Map<String, byte[]> mods;
+
+        ListContent(final List<SolrDocument> documents, final Map<String, byte[]> mods) {
+            for (SolrDocument doc : documents) {
+                if (doc.containsKey("section_id_ssim")) {
+                    mediaObjects.add(doc);
+                }
+                byId.put((String) doc.getFieldValue("id"), doc);
+                final Collection<Object> identifiers = doc.getFieldValues("identifier_ssim");
+                if (identifiers != null) {
+                    for (Object identifier : identifiers) {
+                        byIdentifier.put((String) identifier, doc);
+                    }
+                }
+            }
+            this.mods = mods;
+        }
+
+        public int getMediaObjectCount() {
+            return mediaObjects.size();
+        }
+
+        public SolrDocument getMediaObject(int index) {
+            return mediaObjects.get(index);
+        }
+
+        public SolrDocument getById(String id) {
+            return byId.get(id);
+        }
+
+        public SolrDocument getByIdentifier(String identifier) {
+            return byIdentifier.get(identifier);
+        }
+
+        public byte[] getMods(String id) {
+            return mods.get(id);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * Generates any number of media objects, each with one or more sections
+ * (master files), a collection and MODS with a realistic spread of names,
+ * subjects, notes and lengths.  Nothing is held in memory: every document
+ * is generated on request from its id and a seed, so the same document is
+ * returned each time it's requested and large repositories cost nothing
+ * until they are read.
+ *
+ * Media objects are "lt" followed by a seven digit index, their sections
+ * append "s" and a two digit index, and collections are "ltc" followed by a
+ * six digit index.  70% of media objects also have an old "avalon:" pid and
+ * one in fifty belongs to the blacklisted collection.
+ */
+class SyntheticContent implements StubRepository.Content {
+
+    private static final long FIRST_MODIFIED = 1420070400000L;
+
+    private static final int OBJECTS_PER_COLLECTION = 500;
+
+    private static final String[] WORDS = ("recording lecture interview performance concert symposium oral history "
+            + "archive collection university virginia library music jazz folk opera orchestra quartet sonata "
+            + "architecture rotunda lawn pavilion garden civil rights movement reconstruction appalachian "
+            + "mountain river community family memoir documentary field session tape reel broadcast radio "
+            + "television campus commencement address seminar workshop poetry reading fiction").split(" ");
+
+    private static final String[] SURNAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller",
+            "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Wilson", "Anderson", "Thomas", "Taylor",
+            "Moore", "Jackson", "Martin", "Lee", "Thompson", "White", "Harris", "Clark", "Lewis" };
+
+    private static final String[] GIVEN_NAMES = { "Mary", "James", "Patricia", "John", "Jennifer", "Robert",
+            "Linda", "Michael", "Elizabeth", "William", "Barbara", "David", "Susan", "Richard", "Jessica" };
+
+    private static final String[] ROLES = { "cre", "spk", "prf", "cnd", "ctb", "ivr", "ive", "pro", "drt", "cmp" };
+
+    private static final String[] GENRES = { "Lectures", "Interviews", "Concerts", "Oral histories",
+            "Documentary films", "Speeches", "Radio programs", "Music" };
+
+    private static final String[] PLACES = { "Virginia", "Charlottesville (Va.)", "Richmond (Va.)",
+            "Appalachian Region", "Southern States", "Washington (D.C.)" };
+
+    private final int count;
+
+    private final long seed;
+
+    SyntheticContent(final int count, final long seed) {
+        this.count = count;
+        this.seed = seed;
+    }
+
+    public int getMediaObjectCount() {
+        return count;
+    }
+
+    public SolrDocument getMediaObject(int index) {
+        final String id = getId(index);
+        final Random r = random(index, 0);
+        final boolean video = r.nextInt(100) < 40;
+        final int sectionCount = r.nextInt(100) < 60 ? 1 : 2 + r.nextInt(r.nextInt(100) < 90 ? 3 : 15);
+
+        final SolrDocument doc = new SolrDocument();
+        doc.setField("id", id);
+        if (index % 10 < 7) {
+            doc.setField("identifier_ssim", Arrays.asList(getOldId(index)));
+        }
+        if (r.nextInt(100) < 90) {
+            doc.setField("avalon_publisher_ssi", "archivist1@example.edu");
+        }
+        doc.setField("hidden_bsi", r.nextInt(100) < 5);
+        doc.setField("avalon_resource_type_ssim", Arrays.asList(video ? "Moving image" : "Sound Recording"));
+        doc.setField("title_tesim", Arrays.asList(getTitle(index)));
+        final List<String> sectionIds = new ArrayList<String>();
+        long duration = 0;
+        for (int i = 0; i < sectionCount; i ++) {
+            sectionIds.add(id + "s" + String.format("%02d", i));
+            duration += getSectionDuration(index, i);
+        }
+        doc.setField("duration_ssi", String.valueOf(duration));
+        doc.setField("section_id_ssim", sectionIds);
+        doc.setField("isMemberOfCollection_ssim", Arrays.asList(getCollectionId(index)));
+        doc.setField("system_modified_dtsi", new Date(FIRST_MODIFIED + index * 60000L));
+        return doc;
+    }
+
+    public SolrDocument getById(String id) {
+        if (id.equals(Fixtures.BLACKLISTED_COLLECTION_ID)) {
+            return getCollection(Fixtures.BLACKLISTED_COLLECTION_ID, "Restricted Test Collection");
+        } else if (id.matches("ltc\\d{6}")) {
+            return Integer.parseInt(id.substring(3)) <= getCollectionCount()
+                    ? getCollection(id, "Collection " + Integer.parseInt(id.substring(3))) : null;
+        } else if (id.matches("lt\\d{7}s\\d{2}")) {
+            final int index = Integer.parseInt(id.substring(2, 9));
+            final int section = Integer.parseInt(id.substring(10));
+            if (index >= count) {
+                return null;
+            }
+            final SolrDocument mediaObject = getMediaObject(index);
+            return section < mediaObject.getFieldValues("section_id_ssim").size() ? getSection(index, section,
+                    mediaObject.getFirstValue("avalon_resource_type_ssim").equals("Moving image")) : null;
+        } else if (id.matches("lt\\d{7}")) {
+            final int index = Integer.parseInt(id.substring(2));
+            return index < count ? getMediaObject(index) : null;
+        }
+        return null;
+    }
+
+    public SolrDocument getByIdentifier(String identifier) {
+        if (identifier.matches("avalon:\\d+")) {
+            final int index = Integer.parseInt(identifier.substring(7)) - 1000;
+            if (index >= 0 && index < count && index % 10 < 7) {
+                return getMediaObject(index);
+            }
+        }
+        return null;
+    }
+
+    public byte[] getMods(String id) {
+        if (!id.matches("lt\\d{7}")) {
+            return null;
+        }
+        final int index = Integer.parseInt(id.substring(2));
+        if (index >= count) {
+            return null;
+        }
+        try {
+            return generateMods(index).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private Random random(final int index, final int salt) {
+        return new Random(seed * 1000003L + index * 31L + salt);
+    }
+
+    private static String getId(final int index) {
+        return "lt" + String.format("%07d", index);
+    }
+
+    private static String getOldId(final int index) {
+        return "avalon:" + (index + 1000);
+    }
+
+    private int getCollectionCount() {
+        return Math.max(1, count / OBJECTS_PER_COLLECTION);
+    }
+
+    private String getCollectionId(final int index) {
+        if (index % 50 == 49) {
+            return Fixtures.BLACKLISTED_COLLECTION_ID;
+        }
+        return "ltc" + String.format("%06d", 1 + index % getCollectionCount());
+    }
+
+    private static SolrDocument getCollection(final String id, final String name) {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField("id", id);
+        doc.setField("name_ssi", name);
+        doc.setField("unit_ssi", "Special Collections");
+        return doc;
+    }
+
+    private String getTitle(final int index) {
+        return title(random(index, -2));
+    }
+
+    private long getSectionDuration(final int index, final int section) {
+        return 30000 + random(index, section + 1).nextInt(5400000);
+    }
+
+    private SolrDocument getSection(final int index, final int section, final boolean video) {
+        final Random r = random(index, section + 1);
+        final SolrDocument doc = new SolrDocument();
+        doc.setField("id", getId(index) + "s" + String.format("%02d", section));
+        doc.setField("duration_ssi", String.valueOf(30000 + r.nextInt(5400000)));
+        doc.setField("has_thumbnail?_bs", video && r.nextInt(100) < 80);
+        doc.setField("avalon_resource_type_ssim", Arrays.asList(video ? "Moving image" : "Sound Recording"));
+        doc.setField("title_tesim", Arrays.asList("Part " + (section + 1)));
+        if (video) {
+            doc.setField("display_aspect_ratio_ssi", r.nextBoolean() ? "1.333" : (r.nextBoolean() ? "1.777" : "2.4"));
+        }
+        return doc;
+    }
+
+    private static String words(final Random r, final int count) {
+        final StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < count; i ++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[r.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String title(final Random r) {
+        final String t = words(r, 2 + r.nextInt(8));
+        return Character.toUpperCase(t.charAt(0)) + t.substring(1);
+    }
+
+    private String generateMods(final int index) {
+        final String title = getTitle(index);
+        final Random m = random(index, -1);
+
+        final StringBuffer sb = new StringBuffer(4096);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<mods xmlns=\"http://www.loc.gov/mods/v3\" version=\"3.4\">\n");
+        sb.append("  <titleInfo usage=\"primary\"><title>").append(title).append("</title></titleInfo>\n");
+        final int names = 1 + m.nextInt(6);
+        for (int i = 0; i < names; i ++) {
+            sb.append("  <name type=\"personal\"><namePart>").append(SURNAMES[m.nextInt(SURNAMES.length)])
+                    .append(", ").append(GIVEN_NAMES[m.nextInt(GIVEN_NAMES.length)]).append("</namePart>");
+            if (m.nextInt(100) < 80) {
+                sb.append("<role><roleTerm type=\"code\" authority=\"marcrelator\">")
+                        .append(ROLES[m.nextInt(ROLES.length)]).append("</roleTerm></role>");
+            }
+            sb.append("</name>\n");
+        }
+        if (m.nextInt(100) < 75) {
+            sb.append("  <abstract>").append(title(m)).append(". ").append(words(m, 20 + m.nextInt(150)))
+                    .append(" &amp; ").append(words(m, 5)).append(".</abstract>\n");
+        }
+        sb.append("  <originInfo><dateIssued encoding=\"edtf\">").append(1900 + m.nextInt(116))
+                .append("</dateIssued>");
+        if (m.nextBoolean()) {
+            sb.append("<dateCreated>").append(1900 + m.nextInt(116)).append("</dateCreated>");
+        }
+        sb.append("<publisher>University of Virginia Library</publisher></originInfo>\n");
+        sb.append("  <genre>").append(GENRES[m.nextInt(GENRES.length)]).append("</genre>\n");
+        final int subjects = m.nextInt(6);
+        for (int i = 0; i < subjects; i ++) {
+            sb.append("  <subject><topic>").append(title(m)).append("</topic>");
+            if (m.nextBoolean()) {
+                sb.append("<geographic>").append(PLACES[m.nextInt(PLACES.length)]).append("</geographic>");
+            }
+            if (m.nextInt(100) < 30) {
+                sb.append("<temporal>").append(1900 + 10 * m.nextInt(12)).append("s</temporal>");
+            }
+            sb.append("</subject>\n");
+        }
+        sb.append("  <language><languageTerm type=\"text\">English</languageTerm></language>\n");
+        if (m.nextInt(100) < 30) {
+            sb.append("  <relatedItem displayLabel=\"Finding aid\"><location><url>http://example.org/findingaids/")
+                    .append(index).append("</url></location></relatedItem>\n");
+        }
+        final int notes = m.nextInt(4);
+        for (int i = 0; i < notes; i ++) {
+            sb.append("  <note>").append(title(m)).append(".</note>\n");
+        }
+        if (m.nextInt(100) < 20) {
+            sb.append("  <tableOfContents>").append(words(m, 3)).append(" -- ").append(words(m, 3))
+                    .append(" -- ").append(words(m, 3)).append("</tableOfContents>\n");
+        }
+        sb.append("  <accessCondition type=\"use and reproduction\">For educational use only.</accessCondition>\n");
+        sb.append("</mods>\n");
+        return sb.toString();
+    }
+}
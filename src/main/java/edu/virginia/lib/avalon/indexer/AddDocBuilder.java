@@ -0,0 +1,252 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A solr add document (an add element holding a single doc) built up a
+ * field at a time: first from the output of the XSLT, received as SAX
+ * events from getContentHandler(), then from the values the indexer adds.
+ * The fields are held in parallel arrays rather than a DOM, so adding one
+ * costs no more than appending to a list, and the document is serialized by
+ * an AddDocWriter.
+ *
+ * The serialization is byte for byte the same as that of the DOM and
+ * identity Transformer (Saxon, with indent="yes") that were used before, so
+ * that documents that haven't changed keep their digests.  The only part of
+ * it that depends on the stylesheet, the add start tag with its namespace
+ * declarations, is produced by that same Transformer once for each set of
+ * namespaces and cached.  Anything other than add, doc and field elements
+ * (with name and boost attributes) in the XSLT output is rejected rather
+ * than serialized differently.
+ */
+public class AddDocBuilder {
+
+    /**
+     * The serialized add start tag for each set of namespace declarations.
+     */
+    private static final ConcurrentHashMap<List<String>, byte[]> START_TAGS
+            = new ConcurrentHashMap<List<String>, byte[]>();
+
+    /**
+     * The prefix and URI of each namespace declared on the add element.
+     */
+    private final List<String> namespaces = new ArrayList<String>(8);
+
+    private String[] names = new String[64];
+
+    /**
+     * The value of each field, or null for a field from the XSLT that was
+     * empty (which is serialized as an empty element).
+     */
+    private String[] values = new String[64];
+
+    private String[] boosts = new String[64];
+
+    private int size = 0;
+
+    public void addField(final String name, final String value) {
+        addField(name, value, null);
+    }
+
+    /**
+     * Adds a field, unless the value is null.
+     * @param boost the field's boost, or null for none
+     */
+    public void addField(final String name, final String value, final String boost) {
+        if (value != null) {
+            append(name, value, boost);
+        }
+    }
+
+    private void append(final String name, final String value, final String boost) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            boosts = Arrays.copyOf(boosts, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        boosts[size] = boost;
+        size ++;
+    }
+
+    public int getFieldCount() {
+        return size;
+    }
+
+    public String getFieldName(final int index) {
+        return names[index];
+    }
+
+    public String getFieldValue(final int index) {
+        return values[index];
+    }
+
+    public String getFieldBoost(final int index) {
+        return boosts[index];
+    }
+
+    /**
+     * Discards every field after the first count.
+     */
+    void truncate(final int count) {
+        for (int i = count; i < size; i ++) {
+            names[i] = values[i] = boosts[i] = null;
+        }
+        size = Math.min(size, count);
+    }
+
+    /**
+     * Serializes the document.
+     */
+    public void writeTo(final AddDocWriter out) throws Exception {
+        out.write(getStartTag(namespaces));
+        if (size == 0) {
+            out.writeMarkup("\n   <doc/>");
+        } else {
+            out.writeMarkup("\n   <doc>");
+            for (int i = 0; i < size; i ++) {
+                out.writeMarkup("\n      <field");
+                // in the DOM's (alphabetical) order
+                if (boosts[i] != null) {
+                    out.writeMarkup(" boost=\"");
+                    out.writeEscaped(boosts[i], true);
+                    out.writeMarkup("\"");
+                }
+                if (names[i] != null) {
+                    out.writeMarkup(" name=\"");
+                    out.writeEscaped(names[i], true);
+                    out.writeMarkup("\"");
+                }
+                if (values[i] == null) {
+                    out.writeMarkup("/>");
+                } else {
+                    out.writeMarkup(">");
+                    out.writeEscaped(values[i], false);
+                    out.writeMarkup("</field>");
+                }
+            }
+            out.writeMarkup("\n   </doc>");
+        }
+        out.writeMarkup("\n</add>");
+    }
+
+    private static byte[] getStartTag(final List<String> namespaces) throws Exception {
+        byte[] startTag = START_TAGS.get(namespaces);
+        if (startTag == null) {
+            final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            final Element add = doc.createElement("add");
+            for (int i = 0; i < namespaces.size(); i += 2) {
+                add.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:" + namespaces.get(i),
+                        namespaces.get(i + 1));
+            }
+            add.appendChild(doc.createElement("doc"));
+            doc.appendChild(add);
+
+            final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            final StringWriter sw = new StringWriter();
+            transformer.transform(new DOMSource(doc), new StreamResult(sw));
+            final String serialized = sw.toString();
+            startTag = serialized.substring(0, serialized.indexOf('>') + 1).getBytes("UTF-8");
+            START_TAGS.put(new ArrayList<String>(namespaces), startTag);
+        }
+        return startTag;
+    }
+
+    /**
+     * Gets a ContentHandler that adds the fields (and the namespaces of the
+     * add element) of the document it receives, which must be a solr add
+     * document with a single doc.
+     */
+    public ContentHandler getContentHandler() {
+        return new DefaultHandler() {
+
+            private int depth = 0;
+
+            private boolean docSeen = false;
+
+            private String name;
+
+            private String boost;
+
+            private final StringBuilder text = new StringBuilder();
+
+            private boolean hasText;
+
+            public void startPrefixMapping(String prefix, String uri) throws SAXException {
+                if (depth > 0) {
+                    throw new SAXException("Unexpected namespace declaration for \"" + prefix
+                            + "\" within the add element!");
+                }
+                namespaces.add(prefix);
+                namespaces.add(uri);
+            }
+
+            public void startElement(String uri, String localName, String qName, Attributes attributes)
+                    throws SAXException {
+                if (uri != null && uri.length() > 0) {
+                    throw new SAXException("Unexpected element {" + uri + "}" + localName + " in add document!");
+                }
+                if (depth == 0 && localName.equals("add")) {
+                    checkAttributes(attributes, 0);
+                } else if (depth == 1 && localName.equals("doc") && !docSeen) {
+                    checkAttributes(attributes, 0);
+                    docSeen = true;
+                } else if (depth == 2 && localName.equals("field")) {
+                    name = attributes.getValue("", "name");
+                    boost = attributes.getValue("", "boost");
+                    checkAttributes(attributes, (name == null ? 0 : 1) + (boost == null ? 0 : 1));
+                    text.setLength(0);
+                    hasText = false;
+                } else {
+                    throw new SAXException("Unexpected element " + localName + " in add document!");
+                }
+                depth ++;
+            }
+
+            private void checkAttributes(Attributes attributes, int expected) throws SAXException {
+                if (attributes.getLength() != expected) {
+                    throw new SAXException("Unexpected attributes in add document!");
+                }
+            }
+
+            public void characters(char[] ch, int start, int length) throws SAXException {
+                if (depth != 3) {
+                    throw new SAXException("Unexpected text in add document: " + new String(ch, start, length));
+                }
+                text.append(ch, start, length);
+                hasText = true;
+            }
+
+            public void endElement(String uri, String localName, String qName) {
+                depth --;
+                if (depth == 2) {
+                    append(name, hasText ? text.toString() : null, boost);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes every document in an add document repository (in either the
+ * directory or the segment layout) as a single solr add message, reading
+ * the documents sequentially in storage order.  The output may be passed
+ * straight to a downstream loader or posted to solr's update handler.  A
+ * segment store is opened read-only, so the export may run while the
+ * indexer is writing to (or compacting) it; it exports the documents as
+ * they were when it started.
+ */
+public class AddDocExport {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: AddDocExport add-doc-repository [output-file]");
+            System.exit(-1);
+        }
+        final File repository = new File(args[0]);
+        final AddDocStore store = SegmentAddDocStore.isSegmentStore(repository)
+                ? SegmentAddDocStore.openReadOnly(repository)
+                : new DirectoryAddDocStore(repository);
+        final OutputStream out = args.length == 2 ? new FileOutputStream(args[1]) : System.out;
+        try {
+            final int count = export(store, new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 65536));
+            System.err.println(count + " documents exported from " + repository + ".");
+        } finally {
+            store.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Writes every document in the store to the given Writer (which is
+     * flushed, but not closed) within a single add element.
+     * @return the number of documents written
+     */
+    public static int export(final AddDocStore store, final Writer w) throws Exception {
+        int count = 0;
+        w.write("<add>\n");
+        for (String name : store.list()) {
+            final byte[] content = store.read(name);
+            if (content != null) {
+                w.write(SolrUpdatePusher.getDocElements(new String(content, "UTF-8")));
+                w.write('\n');
+                count ++;
+            }
+        }
+        w.write("</add>\n");
+        w.flush();
+        return count;
+    }
+}
@@ -0,0 +1,204 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent record of the add documents in the add-doc repository,
+ * keyed by filename.  For each document it stores the pid of the record it
+ * represents, the value of its shadowed_location_facet, a digest of the
+ * content last written (so that a regenerated document that is identical to
+ * the existing one needn't be written again) and the last time the record
+ * was seen by the indexer.
+ *
+ * The index is kept in memory and saved as a tab-delimited text file with
+ * one line per document.
+ */
+public class AddDocIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AddDocIndex.class);
+
+    public static final String HIDDEN = "HIDDEN";
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public AddDocIndex(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    final String[] values = line.split("\t");
+                    if (values.length == 5) {
+                        entries.put(values[0], new Entry(values[0], values[1],
+                                values[2].length() == 0 ? null : values[2], values[3], Long.parseLong(values[4])));
+                    } else if (values.length == 2) {
+                        // an entry written before pids and visibility were recorded
+                        entries.put(values[0], new Entry(values[0], getPidForFilename(values[0]), null, values[1], 0));
+                    } else {
+                        LOGGER.warn("Skipping malformed line in " + file + ": " + line);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+            LOGGER.debug("Loaded " + entries.size() + " entries from " + file + ".");
+        }
+    }
+
+    /**
+     * Computes the digest stored for the given add document content.
+     */
+    public static String digest(byte[] content) {
+        return DigestUtils.md5Hex(content);
+    }
+
+    /**
+     * Derives the pid of a record from the name of its add document file
+     * (the inverse of AvalonRecord.getFilename()).
+     */
+    public static String getPidForFilename(final String filename) {
+        return filename.substring(0, filename.length() - ".xml".length()).replace('_', ':');
+    }
+
+    /**
+     * Returns true if the last content recorded for the given file had the
+     * given digest.
+     */
+    public synchronized boolean isUnchanged(final String filename, final String digest) {
+        final Entry e = entries.get(filename);
+        return e != null && e.digest.equals(digest);
+    }
+
+    /**
+     * Records that the given file holds content with the given digest for
+     * the given pid and visibility, as of now.
+     */
+    public synchronized void update(final String filename, final String pid, final String visibility,
+            final String digest) {
+        entries.put(filename, new Entry(filename, pid, visibility, digest, System.currentTimeMillis()));
+    }
+
+    /**
+     * Records the given pid and visibility for the given file but no digest,
+     * so that the next document generated for it is treated as changed
+     * (and written or sent again) whatever its content.
+     */
+    public synchronized void clearDigest(final String filename, final String pid, final String visibility) {
+        entries.put(filename, new Entry(filename, pid, visibility, "", System.currentTimeMillis()));
+    }
+
+    public synchronized void remove(final String filename) {
+        entries.remove(filename);
+    }
+
+    public synchronized Entry get(final String filename) {
+        return entries.get(filename);
+    }
+
+    /**
+     * Gets a snapshot of the current entries.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the index to its file, replacing the previous version only once
+     * the new one is complete.
+     */
+    public synchronized void save() throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            for (Entry e : entries.values()) {
+                w.write(e.filename);
+                w.write('\t');
+                w.write(e.pid);
+                w.write('\t');
+                w.write(e.visibility == null ? "" : e.visibility);
+                w.write('\t');
+                w.write(e.digest);
+                w.write('\t');
+                w.write(String.valueOf(e.lastSeen));
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static class Entry {
+
+        private final String filename;
+
+        private final String pid;
+
+        private final String visibility;
+
+        private final String digest;
+
+        private final long lastSeen;
+
+        private Entry(String filename, String pid, String visibility, String digest, long lastSeen) {
+            this.filename = filename;
+            this.pid = pid;
+            this.visibility = visibility;
+            this.digest = digest;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getPid() {
+            return pid;
+        }
+
+        /**
+         * Gets the value of the shadowed_location_facet in the document, or
+         * null if it isn't known.
+         */
+        public String getVisibility() {
+            return visibility;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Gets the time (in milliseconds since the epoch) at which the record
+         * was last generated or found to be unchanged, or 0 if unknown.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage for the serialized add documents maintained by the indexer, each
+ * identified by a name (the filename derived from the record's pid).
+ */
+public interface AddDocStore {
+
+    boolean exists(String name) throws IOException;
+
+    /**
+     * Gets the content of the named document, or null if there is none.
+     */
+    byte[] read(String name) throws IOException;
+
+    /**
+     * Stores the content of the named document, replacing any previous
+     * version.  A reader will see either the previous or the new content
+     * in full, even if the process is killed during the write.
+     */
+    void write(String name, byte[] content) throws IOException;
+
+    /**
+     * Lists the names of every stored document, in the order in which they
+     * may be most efficiently read.
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * Ensures that everything written so far is durable.
+     */
+    void flush() throws IOException;
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,153 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.Arrays;
+
+/**
+ * Serializes AddDocBuilders as UTF-8 into a buffer that is kept from one
+ * document to the next, so that a thread indexing many records allocates
+ * little more than the resulting bytes.  Not thread safe; each thread
+ * should have its own.
+ *
+ * Characters are escaped exactly as Saxon's XML emitter escapes them (which
+ * is not quite how any other serializer does) so that the output matches
+ * that of the Transformer this replaces.
+ */
+public class AddDocWriter {
+
+    private static final boolean[] SPECIAL_IN_TEXT = new boolean[128];
+
+    private static final boolean[] SPECIAL_IN_ATTRIBUTE = new boolean[128];
+
+    static {
+        for (int c = 0; c < 32; c ++) {
+            SPECIAL_IN_TEXT[c] = c != '\t' && c != '\n';
+        }
+        for (int c = 0; c < 16; c ++) {
+            SPECIAL_IN_ATTRIBUTE[c] = true;
+        }
+        SPECIAL_IN_ATTRIBUTE['\r'] = true;
+        SPECIAL_IN_ATTRIBUTE['"'] = true;
+        SPECIAL_IN_TEXT['<'] = SPECIAL_IN_ATTRIBUTE['<'] = true;
+        SPECIAL_IN_TEXT['>'] = SPECIAL_IN_ATTRIBUTE['>'] = true;
+        SPECIAL_IN_TEXT['&'] = SPECIAL_IN_ATTRIBUTE['&'] = true;
+    }
+
+    private byte[] buffer = new byte[16384];
+
+    private int count = 0;
+
+    /**
+     * Serializes the given document, replacing whatever was written before.
+     * @return the serialized document
+     */
+    public byte[] write(final AddDocBuilder doc) throws Exception {
+        count = 0;
+        doc.writeTo(this);
+        return Arrays.copyOf(buffer, count);
+    }
+
+    void write(final byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Writes markup, which must be ASCII and needs no escaping.
+     */
+    void writeMarkup(final String markup) {
+        final int length = markup.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i ++) {
+            buffer[count ++] = (byte) markup.charAt(i);
+        }
+    }
+
+    /**
+     * Writes text or an attribute value, escaped as Saxon would.  A \0 turns
+     * escaping off (until the next \0) just as Saxon's disable-output-escaping
+     * marker does.
+     */
+    void writeEscaped(final String value, final boolean attribute) {
+        final boolean[] special = attribute ? SPECIAL_IN_ATTRIBUTE : SPECIAL_IN_TEXT;
+        final int length = value.length();
+        boolean escaping = true;
+        for (int i = 0; i < length; i ++) {
+            // the longest escape is six bytes ("&#159;")
+            ensureCapacity(6);
+            final char c = value.charAt(i);
+            if (c == 0) {
+                escaping = !escaping;
+            } else if (!escaping) {
+                i = writeChar(value, i);
+            } else if (c < 127) {
+                if (!special[c]) {
+                    buffer[count ++] = (byte) c;
+                } else if (c == '<') {
+                    writeMarkup("&lt;");
+                } else if (c == '>') {
+                    writeMarkup("&gt;");
+                } else if (c == '&') {
+                    writeMarkup("&amp;");
+                } else if (c == '"') {
+                    writeMarkup("&#34;");
+                } else if (c == '\n') {
+                    writeMarkup("&#xA;");
+                } else if (c == '\r') {
+                    writeMarkup("&#xD;");
+                } else if (c == '\t') {
+                    writeMarkup("&#x9;");
+                } else {
+                    writeMarkup("&#" + (int) c + ";");
+                }
+            } else if (c < 160) {
+                writeMarkup("&#" + (int) c + ";");
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && !Character.isLowSurrogate(value.charAt(i + 1))) {
+                // Saxon writes whatever follows a high surrogate unescaped
+                buffer[count ++] = '?';
+                ensureCapacity(4);
+                i = writeChar(value, i + 1);
+            } else {
+                i = writeChar(value, i);
+            }
+        }
+    }
+
+    /**
+     * Writes the character at the given index as UTF-8, along with the next
+     * one if they are a surrogate pair, with '?' for an unpaired surrogate
+     * (as String.getBytes() would).
+     * @return the index of the last character written
+     */
+    private int writeChar(final String value, final int index) {
+        final char c = value.charAt(index);
+        if (c < 0x80) {
+            buffer[count ++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count ++] = (byte) (0xC0 | (c >> 6));
+            buffer[count ++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            final int cp = Character.toCodePoint(c, value.charAt(index + 1));
+            buffer[count ++] = (byte) (0xF0 | (cp >> 18));
+            buffer[count ++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[count ++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[count ++] = (byte) (0x80 | (cp & 0x3F));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            buffer[count ++] = '?';
+        } else {
+            buffer[count ++] = (byte) (0xE0 | (c >> 12));
+            buffer[count ++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count ++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return index;
+    }
+
+    private void ensureCapacity(final int more) {
+        if (count + more > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + more));
+        }
+    }
+}
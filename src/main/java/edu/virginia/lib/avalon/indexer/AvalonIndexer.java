@@ -1,55 +1,45 @@
 package edu.virginia.lib.avalon.indexer;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.io.StringWriter;
-import java.net.MalformedURLException;
-import java.net.URI;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
-import org.apache.commons.httpclient.methods.multipart.FilePart;
-import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
-import org.apache.commons.httpclient.methods.multipart.Part;
+
 import org.apache.commons.io.IOUtils;
-import org.fcrepo.client.FcrepoClient;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 public class AvalonIndexer {
 
@@ -75,19 +65,31 @@ public class AvalonIndexer {
                 }
 
                 AvalonIndexer ai = new AvalonIndexer(p);
+                if (ai.getIntProperty("poll-interval-seconds", 0) > 0) {
+                    ai.runAsDaemon();
+                    return;
+                }
                 ai.synchronizeAddDocRepository();
                 ai.shadowAnyDeletedRecords();
+                ai.saveMetadataCache();
+                ai.close();
+                ai.writeMetricsReports();
+                if (ai.getPushStatistics() != null) {
+                    System.out.println(ai.getPushStatistics());
+                }
                 if (ai.getErrorCount() > 0) {
                     System.err
                             .println(ai.getErrorCount() + " errors while updating records, " + ai.getIndexRecordCount()
-                                    + " other index records created/updated as a result of changes since "
+                                    + " other index records created/updated (" + ai.getUnchangedRecordCount()
+                                    + " regenerated but unchanged) as a result of changes since "
                                     + (ai.getLastRunDate() == null ? "the beginning of time"
                                             : new SimpleDateFormat("yyyy-MM-dd hh:mm").format(ai.getLastRunDate()))
                                     + ".");
                     System.exit(1);
                 } else {
                     System.out.println(
-                            ai.getIndexRecordCount() + " index records created/updated as a result of changes since "
+                            ai.getIndexRecordCount() + " index records created/updated (" + ai.getUnchangedRecordCount()
+                                    + " regenerated but unchanged) as a result of changes since "
                                     + (ai.getLastRunDate() == null ? "the beginning of time"
                                             : new SimpleDateFormat("yyyy-MM-dd hh:mm").format(ai.getLastRunDate()))
                                     + ".");
@@ -106,371 +108,1639 @@ public class AvalonIndexer {
 
     private Properties configuration;
     
-    private HttpClient httpClient;
-
-    private FcrepoClient fcrepo;
+    /**
+     * The pooled HTTP client used for every request to fedora and solr.
+     */
+    private HttpTransport transport;
 
     private String avalonFedoraBaseUrl;
 
-    private Transformer transformer;
+    private Templates templates;
 
-    private int indexedRecords;
+    /**
+     * The date (yyyy-MM-dd) passed to the stylesheet as "run-date": the
+     * start of the current synchronization, so that date facets don't depend
+     * on when during a run a record happened to be transformed.
+     */
+    private volatile String runDate;
 
-    private int errors;
+    /**
+     * A Transformer for the compiled avalon-to-solr.xsl for each thread that
+     * transforms records, since a Transformer may not be used concurrently.
+     */
+    private final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+        protected Transformer initialValue() {
+            try {
+                return templates.newTransformer();
+            } catch (TransformerConfigurationException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    };
 
-    public AvalonIndexer(Properties p) throws TransformerConfigurationException, MalformedURLException {
-        this.configuration = p;
+    /**
+     * An AddDocWriter for each thread that serializes add documents, so that
+     * its buffer is reused from one record to the next.
+     */
+    private final ThreadLocal<AddDocWriter> addDocWriters = new ThreadLocal<AddDocWriter>() {
+        protected AddDocWriter initialValue() {
+            return new AddDocWriter();
+        }
+    };
+
+    private AtomicInteger indexedRecords = new AtomicInteger();
+
+    private AtomicInteger unchangedRecords = new AtomicInteger();
+
+    private AtomicInteger errors = new AtomicInteger();
+
+    private AddDocIndex addDocIndex;
+
+    private MetadataCache<HydraSolrManager.AvalonRecord> recordCache;
+
+    /**
+     * A cache of MODS records, revalidated with fedora before each use, or
+     * null if MODS records are always fetched in full.
+     */
+    private ModsCache modsCache;
+
+    private SolrUpdatePusher pusher;
+
+    private AddDocStore store;
+
+    /**
+     * Tracks the progress of the current synchronization.
+     */
+    private WatermarkTracker watermark;
+
+    private long lastCheckpoint;
+
+    /**
+     * Where the records are read from, shared by every thread and (in daemon
+     * mode) every cycle so that any connection pool is reused.
+     */
+    private RecordSource source;
+
+    /**
+     * Retries, circuit breakers and concurrency limits for the calls to
+     * fedora and to the hydra solr core, or null when records are read from
+     * a snapshot.
+     */
+    private Upstream fedoraUpstream;
+
+    private Upstream solrUpstream;
+
+    /**
+     * The records that couldn't be indexed, to be retried in the next run,
+     * or null if failed records instead hold back the last-run date.
+     */
+    private DeadLetterList deadLetters;
+
+    /**
+     * Set when the daemon is shut down, to end the current synchronization
+     * after the records in progress, which are still checkpointed.
+     */
+    private volatile boolean stopRequested = false;
+
+    /**
+     * Cleared by the daemon for the cycles in which the records on the
+     * dead-letter list aren't to be retried.
+     */
+    private boolean retryDeadLetters = true;
+
+    /**
+     * Set to stop the current synchronization after the record in progress.
+     */
+    private volatile boolean abandoned = false;
+
+    /**
+     * Tracks the changed collections and master files found by the current
+     * synchronization, whose watermark is saved once it finishes, or null
+     * if none were looked for.
+     */
+    private WatermarkTracker dependencyWatermark;
+
+    /**
+     * When indexing a single partition of the records, its index and the
+     * number of partitions, otherwise -1 and 1.
+     */
+    private int partition = -1;
 
-        this.httpClient = new HttpClient();
+    private int partitionCount = 1;
+
+    /**
+     * Timings and counts for the current run (or daemon cycle).
+     */
+    private volatile IndexerMetrics metrics;
+
+    private final Object pollLock = new Object();
+
+    public AvalonIndexer(Properties p) throws TransformerConfigurationException, IOException {
+        this.configuration = p;
 
         TransformerFactory tFactory = TransformerFactory.newInstance();
-        Templates templates = tFactory.newTemplates(
-                new StreamSource(getClass().getClassLoader().getResourceAsStream("avalon-to-solr.xsl")));
-        this.transformer = templates.newTransformer();
+        final String compiledStylesheet = getProperty("compiled-stylesheet-file", "");
+        this.templates = StylesheetCache.getTemplates(tFactory, "avalon-to-solr.xsl",
+                compiledStylesheet.trim().length() > 0 ? new File(compiledStylesheet.trim()) : null);
+        this.runDate = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+
+        this.transport = new HttpTransport(getIntProperty("http-max-connections", 100),
+                getIntProperty("http-max-connections-per-host", 20), getIntProperty("http-connect-timeout-ms", 10000),
+                getIntProperty("http-read-timeout-ms", 60000), getIntProperty("http-keep-alive-seconds", 60) * 1000L);
+
+        this.source = openRecordSource();
 
-        this.avalonFedoraBaseUrl = getRequiredProperty("fedoraBase");
-        fcrepo = FcrepoClient.client().credentials(getRequiredProperty("username"), getRequiredProperty("password"))
-                .throwExceptionOnFailure().build();
+        if (getProperty("target-solr-url", "").trim().length() > 0) {
+            this.pusher = new SolrUpdatePusher(
+                    new HttpSolrServer(getRequiredProperty("target-solr-url").trim(), transport.getClient()),
+                    getIntProperty("target-solr-batch-size", 500), getIntProperty("target-solr-senders", 2),
+                    getIntProperty("target-solr-commit-within-ms", 60000));
+        }
+        this.store = openAddDocStore();
+        if (store == null && pusher == null) {
+            throw new RuntimeException("Either \"add-doc-repository\" or \"target-solr-url\" must be set!");
+        }
+
+        this.metrics = newMetrics();
+
+        this.addDocIndex = new AddDocIndex(new File(getProperty("add-doc-index-file",
+                new File(new File(getRequiredProperty("last-run-file")).getAbsoluteFile().getParentFile(),
+                        "add-doc-index.txt").getPath()).trim()));
+        final String deadLetterFile = getProperty("dead-letter-file",
+                new File(new File(getRequiredProperty("last-run-file")).getAbsoluteFile().getParentFile(),
+                        "dead-letters.txt").getPath()).trim();
+        if (deadLetterFile.length() > 0) {
+            this.deadLetters = new DeadLetterList(new File(deadLetterFile));
+        }
 
+        this.recordCache = new MetadataCache<HydraSolrManager.AvalonRecord>(getIntProperty("metadata-cache-size", 10000),
+                getIntProperty("metadata-cache-ttl-minutes", 60) * 60000L);
+        if (getMetadataCacheFile() != null) {
+            recordCache.load(getMetadataCacheFile());
+        }
+        if (source instanceof LiveRecordSource && getProperty("mods-cache-directory", "").trim().length() > 0) {
+            this.modsCache = new ModsCache(new File(getProperty("mods-cache-directory", "").trim()),
+                    getIntProperty("mods-cache-max-mb", 1024) * 1024L * 1024L);
+        }
     }
-    
-    private String getProperty(String name, String defaultValue) {
-        if (configuration.containsKey(name)) {
-            return configuration.getProperty(name);
+
+    /**
+     * Opens the source of the records to index: the hydra solr core and
+     * fedora, unless record-source is "snapshot", in which case they're
+     * read from the snapshot-solr-file and snapshot-mods.
+     */
+    private RecordSource openRecordSource() throws IOException {
+        final String type = getProperty("record-source", "live").trim();
+        if (type.equals("live")) {
+            final HydraSolrManager solrManager = new HydraSolrManager(getRequiredProperty("hydra-solr-url"),
+                    getIntProperty("hydra-solr-page-size", HydraSolrManager.DEFAULT_PAGE_SIZE), transport.getClient());
+            solrManager.setIdPageSize(getIntProperty("hydra-solr-id-page-size", HydraSolrManager.DEFAULT_ID_PAGE_SIZE));
+            this.solrUpstream = newUpstream("solr", getIntProperty("solr-max-concurrency", 32));
+            solrManager.setUpstream(solrUpstream);
+            this.fedoraUpstream = newUpstream("fedora", getIntProperty("fedora-max-concurrency", 32));
+
+            this.avalonFedoraBaseUrl = getRequiredProperty("fedoraBase");
+            if (getProperty("fedora-max-connections", "").trim().length() > 0) {
+                transport.setMaxConnections(avalonFedoraBaseUrl, getIntProperty("fedora-max-connections", 20));
+            }
+            return new LiveRecordSource(solrManager,
+                    new FedoraClient(transport, getRequiredProperty("username"), getRequiredProperty("password")),
+                    avalonFedoraBaseUrl, fedoraUpstream);
+        } else if (type.equals("snapshot")) {
+            return new SnapshotRecordSource(new File(getRequiredProperty("snapshot-solr-file").trim()),
+                    new File(getRequiredProperty("snapshot-mods").trim()));
         } else {
-            return defaultValue;
+            throw new RuntimeException("Unknown record-source type \"" + type + "\"!");
         }
     }
-    
-    private String getRequiredProperty(String name) {
-        if (configuration.containsKey(name)) {
-            return configuration.getProperty(name);
+
+    /**
+     * Opens the store in which add documents are maintained, or returns null
+     * if documents are only sent to the target solr core.
+     */
+    private AddDocStore openAddDocStore() throws IOException {
+        final String path = getProperty("add-doc-repository", "");
+        if (path.trim().length() == 0) {
+            return null;
+        }
+        final String type = getProperty("add-doc-store", "directory").trim();
+        if (type.equals("directory")) {
+            return new DirectoryAddDocStore(new File(path));
+        } else if (type.equals("segments")) {
+            return new SegmentAddDocStore(new File(path), getIntProperty("segment-max-size-mb", 64) * 1024L * 1024L,
+                    getIntProperty("segment-sync-interval", 1000));
         } else {
-            throw new RuntimeException("Required property \"" + name + "\" not set!");
+            throw new RuntimeException("Unknown add-doc-store type \"" + type + "\"!");
         }
     }
 
-    public int getIndexRecordCount() {
-        return indexedRecords;
+    /**
+     * Creates the Upstream through which calls to the named service are made,
+     * counting each retry in the metrics of the current run.
+     */
+    private Upstream newUpstream(final String name, final int maxConcurrency) {
+        return new Upstream(name, getIntProperty("retry-max-attempts", 4), getIntProperty("retry-base-delay-ms", 200),
+                getIntProperty("retry-max-delay-ms", 10000),
+                new CircuitBreaker(name, getIntProperty("circuit-breaker-failures", 5),
+                        getIntProperty("circuit-breaker-open-seconds", 30) * 1000L,
+                        getIntProperty("circuit-breaker-max-wait-minutes", 15) * 60000L),
+                new ConcurrencyLimit(1, Math.min(4, maxConcurrency), maxConcurrency),
+                new Upstream.RetryListener() {
+                    public void retrying(String upstream, int attempt, Exception ex) {
+                        metrics.increment("retries");
+                    }
+                });
     }
 
-    public int getErrorCount() {
-        return errors;
+    /**
+     * Gets a summary of the documents sent to the target solr core, or null
+     * if none is configured.
+     */
+    public String getPushStatistics() {
+        return pusher == null ? null : pusher.getStatistics();
     }
 
     /**
-     * Updates the files in the given addDocRepo directory to reflect current
-     * solr documents for the
+     * Gets a summary of the use of the connection pool for fedora, the hydra
+     * solr core and (if configured) the target solr core.
      */
-    public void synchronizeAddDocRepository() throws Exception {
-        HydraSolrManager m = new HydraSolrManager(getRequiredProperty("hydra-solr-url"));
-        for (HydraSolrManager.AvalonRecord record : m.getPidsUpdatedSince(getLastRunDate())) {
-            final boolean blacklisted = isBlacklisted(record);
-            String addDoc = null;
-            try {
-                addDoc = generateAddDoc(record);
-            } catch (Throwable t) {
-                LOGGER.error("Unable to index " + record.getId() + "!", t);
-                errors ++;
-                return;
-            }
-            FileOutputStream fos = new FileOutputStream(
-                    new File(getRequiredProperty("add-doc-repository"), record.getFilename()));
-            try {
-                LOGGER.info("Generating add doc for " + (blacklisted ? "blacklisted " : "") + record.getId()
-                        + " belonging to collection " + record.getCollectionId() + "...");
-                IOUtils.write(addDoc, fos);
-                indexedRecords ++;
-            } catch (Exception ex) {
-                errors ++;
-                LOGGER.error("Unable to index " + record.getId() + "!", ex);
-                fos.close();
-            } finally {
-                fos.close();
-            }
+    public String getConnectionStatistics() {
+        if (fedoraUpstream == null) {
+            return pusher == null ? "none" : transport.getStatistics(getRequiredProperty("target-solr-url").trim());
+        }
+        final String upstreams = ", fedora concurrency limit " + fedoraUpstream.getConcurrencyLimit().getLimit()
+                + " (circuit opened " + fedoraUpstream.getCircuitBreaker().getTimesOpened() + " times)"
+                + ", solr concurrency limit " + solrUpstream.getConcurrencyLimit().getLimit()
+                + " (circuit opened " + solrUpstream.getCircuitBreaker().getTimesOpened() + " times)";
+        if (pusher != null) {
+            return transport.getStatistics(avalonFedoraBaseUrl, getRequiredProperty("hydra-solr-url"),
+                    getRequiredProperty("target-solr-url").trim()) + upstreams;
+        } else {
+            return transport.getStatistics(avalonFedoraBaseUrl, getRequiredProperty("hydra-solr-url")) + upstreams;
         }
-        saveLastRunDate();
     }
 
-    public void shadowAnyDeletedRecords() throws Exception {
-        DocumentBuilder b = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = tFactory.newTransformer();
-        for (File solrDocFile : new File(getRequiredProperty("add-doc-repository")).listFiles()) {
-            Pattern p = Pattern.compile("(\\.+).xml");
-            Matcher m = p.matcher(solrDocFile.getName());
-            if (m.matches()) {
-                final String pid = m.group(1).replace('_', ':');
-                try {
-                    if (!exists(pid)) {
-                        Document solrDoc = b.parse(solrDocFile);
-                        NodeList nl = (NodeList) xpath.evaluate("add/doc/field[@name='shadowed_location_facet']", solrDoc, XPathConstants.NODESET);
-                        if (nl != null && nl.getLength() == 1 && !"HIDDEN".equals(nl.item(0).getTextContent())) {
-                            LOGGER.debug("Hiding deleted record for " + pid + "...");
-                            nl.item(0).setTextContent("HIDDEN");
-                            FileOutputStream fos = new FileOutputStream(solrDocFile);
-                            try {
-                                StreamResult result = new StreamResult(fos);
-                                transformer.transform(new DOMSource(solrDoc), result);
-                            } finally {
-                                fos.close();
-                            }
-                        }
-                    }
-                } catch (Exception ex) {
-                    errors ++;
-                    LOGGER.error("Error testing for existence of object " + pid + "!", ex);
-                }
-            }
+    /**
+     * Sends any documents still waiting to be sent to the target solr core
+     * and releases its resources.
+     */
+    public void close() throws InterruptedException, IOException {
+        if (pusher != null) {
+            pusher.close();
+        }
+        if (store != null) {
+            store.close();
         }
+        if (modsCache != null) {
+            LOGGER.info("MODS cache: " + modsCache.getStatistics() + ".");
+        }
+        source.close();
+        LOGGER.info("Connections: " + getConnectionStatistics() + ".");
+        transport.close();
     }
 
-    private HashSet<String> blacklistedCollectionIds = null;
+    private IndexerMetrics newMetrics() {
+        final IndexerMetrics m = new IndexerMetrics(getIntProperty("metrics-slowest-records", 10));
+        m.setCount("retries", 0);
+        return m;
+    }
 
-    private boolean isBlacklisted(HydraSolrManager.AvalonRecord record) throws Exception {
-        if (blacklistedCollectionIds == null) {
-            blacklistedCollectionIds = new HashSet<String>();
-            for (String id : getRequiredProperty("collection-blacklist").split(",")) {
-                id = id.trim();
-                HydraSolrManager.AvalonRecord c = getRecord(id);
-                if (c == null) {
-                    throw new RuntimeException("Unable to find blacklisted collection: " + id);
-                }
-                blacklistedCollectionIds.add(id);
-                blacklistedCollectionIds.add(c.getId());
-            }
-        } else {
-            LOGGER.warn("No blacklisted collections, likely due to a configuration error!");
+    public IndexerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Writes the metrics for the current run to the configured
+     * metrics-json-file and metrics-prometheus-file (if any), and logs a
+     * summary of them.
+     */
+    public void writeMetricsReports() throws IOException {
+        metrics.setCount("records_indexed", indexedRecords.get());
+        metrics.setCount("records_unchanged", unchangedRecords.get());
+        metrics.setCount("errors", errors.get());
+        if (deadLetters != null) {
+            metrics.setCount("dead_letters", deadLetters.size());
         }
-        return blacklistedCollectionIds.contains(record.getCollectionId());
+        LOGGER.info("Stage timings: " + metrics.getSummary() + ".");
+        final String json = getProperty("metrics-json-file", "").trim();
+        final String prometheus = getProperty("metrics-prometheus-file", "").trim();
+        metrics.writeReports(json.length() == 0 ? null : new File(json),
+                prometheus.length() == 0 ? null : new File(prometheus));
     }
 
-    public String generateAddDoc(HydraSolrManager.AvalonRecord rec) throws Exception {
-        final String oldId = rec.getOldId();
-        final String id = rec.getId();
-        Document doc = this.getSolrAddDocFromMods(fcrepo.get(new URI(getURLForMods(id))).perform().getBody());
-        addField(doc, "id", namespaceId(oldId != null ? oldId : id));
-        addField(doc, "id_text", namespaceId(oldId != null ? oldId : id));
-        addField(doc, "avalon_url_display", getRequiredProperty("avalon-url"));
-        addField(doc, "duration_display", rec.getDuration());
-        addField(doc, "format_facet", "Online");
-        if (rec.isMovingImage()) {
-            addField(doc, "format_facet", "Online Video");
-            addField(doc, "format_text", "Online Video");
-            addField(doc, "format_facet", "Video");
+    private File getMetadataCacheFile() {
+        final String filename = getProperty("metadata-cache-file", "");
+        return filename.trim().length() == 0 ? null : new File(filename);
+    }
+
+    /**
+     * Writes the cached collection and id-mapping records to the configured
+     * metadata-cache-file (if any) so that they may be reused by the next run.
+     */
+    public void saveMetadataCache() throws IOException {
+        LOGGER.info("Metadata cache: " + recordCache.getStatistics() + ".");
+        if (getMetadataCacheFile() != null) {
+            recordCache.save(getMetadataCacheFile());
         }
-        if (rec.isAudioRecording()) {
-            addField(doc, "format_facet", "Streaming Audio");
-            addField(doc, "format_text", "Streaming Audio");
-            addField(doc, "format_text", "Sound Recording");
+    }
+    
+    private String getProperty(String name, String defaultValue) {
+        if (configuration.containsKey(name)) {
+            return configuration.getProperty(name);
+        } else {
+            return defaultValue;
         }
-        if (this.isBlacklisted(rec)) {
-            addField(doc, "shadowed_location_facet", "HIDDEN");
-        } else if (!rec.isPublished()) {
-            addField(doc, "shadowed_location_facet", "HIDDEN");
-        } else if (rec.isHidden()) {
-            addField(doc, "shadowed_location_facet", "UNDISCOVERABLE");
+    }
+    
+    private String getRequiredProperty(String name) {
+        if (configuration.containsKey(name)) {
+            return configuration.getProperty(name);
         } else {
-            addField(doc, "shadowed_location_facet", "VISIBLE");
+            throw new RuntimeException("Required property \"" + name + "\" not set!");
         }
+    }
 
-        HydraSolrManager m = new HydraSolrManager(getRequiredProperty("hydra-solr-url"));
-        HydraSolrManager.AvalonRecord collection = getRecord(rec.getCollectionId());
+    private int getIntProperty(String name, int defaultValue) {
+        return Integer.parseInt(getProperty(name, String.valueOf(defaultValue)).trim());
+    }
 
-        addField(doc, "digital_collection_facet", collection.getName());
-        addField(doc, "digital_collection_text", collection.getName(), "0.25");
-        addField(doc, "unit_display", collection.getUnit());
-        addField(doc, "unit_text", collection.getUnit(), "0.25");
+    private RecordSource getSource() {
+        return source;
+    }
 
-        // For each section...
-        boolean thumb = false;
-        boolean audio = false;
-        for (String partId : rec.getSectionIds()) {
-            HydraSolrManager.AvalonRecord part = m.getResultingIds("id:\"" + partId + "\"").get(0);
-            if (!thumb && part.hasThumbnail()) {
-                addField(doc, "thumbnail_url_display",
-                        getRequiredProperty("avalon-url") + "/master_files/" + part.getId() + "/thumbnail");
-                thumb = true;
+    /**
+     * Runs as a resident service, synchronizing every poll-interval-seconds
+     * until the JVM is shut down.  The compiled stylesheet, the solr and
+     * fedora clients (and their connection pools), the resolved blacklist
+     * and the metadata cache are all kept between cycles, so each cycle only
+     * costs the work for the changes it finds.  Deleted records are looked
+     * for every deletion-check-interval-minutes rather than every cycle,
+     * and the records on the dead-letter list are only retried then too,
+     * rather than fetched again on every poll.  When the JVM is shut down, the cycle in progress stops taking on new
+     * records, checkpoints those already started and then exits.
+     */
+    public void runAsDaemon() throws Exception {
+        final long pollInterval = getIntProperty("poll-interval-seconds", 0) * 1000L;
+        final long deletionCheckInterval = getIntProperty("deletion-check-interval-minutes", 60) * 60000L;
+        final Thread daemonThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                LOGGER.info("Shutting down once the records in progress are done...");
+                stopRequested = true;
+                synchronized (pollLock) {
+                    pollLock.notifyAll();
+                }
+                try {
+                    daemonThread.join();
+                } catch (InterruptedException ex) {
+                    // shutting down anyway
+                }
             }
-            if (part.isAudioRecording()) {
-                audio = true;
-            } else {
-                if (audio) {
-                    throw new RuntimeException("Record " + id + " has video clips after audio clips!");
+        });
+        LOGGER.info("Polling for changes every " + (pollInterval / 1000) + " seconds.");
+        long lastDeletionCheck = 0;
+        while (!stopRequested) {
+            final long start = System.currentTimeMillis();
+            indexedRecords.set(0);
+            unchangedRecords.set(0);
+            errors.set(0);
+            metrics = newMetrics();
+            final boolean fullCycle = start - lastDeletionCheck >= deletionCheckInterval;
+            try {
+                retryDeadLetters = fullCycle;
+                synchronizeAddDocRepository();
+                if (!stopRequested && fullCycle) {
+                    shadowAnyDeletedRecords();
+                    saveMetadataCache();
+                    lastDeletionCheck = start;
+                }
+                if (indexedRecords.get() > 0 || errors.get() > 0) {
+                    LOGGER.info(indexedRecords.get() + " index records created/updated (" + unchangedRecords.get()
+                            + " regenerated but unchanged), " + errors.get() + " errors, in "
+                            + (System.currentTimeMillis() - start) + "ms.");
+                }
+            } catch (Exception ex) {
+                LOGGER.error("Indexing cycle failed!", ex);
+            }
+            try {
+                writeMetricsReports();
+            } catch (IOException ex) {
+                LOGGER.error("Unable to write metrics!", ex);
+            }
+            synchronized (pollLock) {
+                final long wait = start + pollInterval - System.currentTimeMillis();
+                if (!stopRequested && wait > 0) {
+                    pollLock.wait(wait);
                 }
             }
-            addField(doc, "part_pid_display", part.getId());
-            addField(doc, "part_duration_display", part.getDuration());
-            addField(doc, "display_aspect_ratio_display", part.getAspectRatio());
-            addField(doc, "part_label_display", part.getTitle());
         }
+        saveMetadataCache();
+        close();
+        if (getPushStatistics() != null) {
+            LOGGER.info(getPushStatistics());
+        }
+    }
 
-        DOMSource domSource = new DOMSource(doc);
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        StringWriter sw = new StringWriter();
-        StreamResult sr = new StreamResult(sw);
-        transformer.transform(domSource, sr);
-        return sw.toString();
+    public int getIndexRecordCount() {
+        return indexedRecords.get();
     }
 
-    public String namespaceId(final String id) {
-        if (id.startsWith("avalon:")) {
-            return id;
-        } else {
-            return "avalon:" + id;
-        }
+    /**
+     * Gets the number of records whose add document was regenerated but
+     * found to be identical to the one already in the repository, and
+     * therefore wasn't rewritten.
+     */
+    public int getUnchangedRecordCount() {
+        return unchangedRecords.get();
     }
 
-    private void addField(Document doc, final String name, final String value) {
-        addField(doc, name, value, null);
+    public int getErrorCount() {
+        return errors.get();
     }
 
-    private void addField(Document doc, final String name, final String value, final String boost) {
-        if (value == null) {
+    /**
+     * Updates the files in the given addDocRepo directory to reflect current
+     * solr documents for the
+     */
+    public void synchronizeAddDocRepository() throws Exception {
+        if (Boolean.parseBoolean(getProperty("pipeline-mode", "false"))) {
+            synchronizeAddDocRepositoryInPipeline();
             return;
         }
-        Element field = doc.createElement("field");
-        field.setAttribute("name", name);
-        if (boost != null) {
-            field.setAttribute("boost", boost);
+        RecordSource m = getSource();
+        final Date since = getLastRunDate();
+        startSynchronization(since);
+        for (HydraSolrManager.AvalonRecord record : getDeadLetterRecords()) {
+            if (isStopping()) {
+                break;
+            }
+            // these predate the last run, so mustn't move the watermark
+            indexRecord(record, watermark.start(null));
         }
-        field.appendChild(doc.createTextNode(value));
-        ((Element) doc.getDocumentElement().getElementsByTagName("doc").item(0)).appendChild(field);
-    }
-
-    private Date getLastRunDate() throws IOException, ParseException {
-        File lastRunFile = new File(getRequiredProperty("last-run-file"));
-        if (lastRunFile.exists()) {
-            FileInputStream fis = new FileInputStream(lastRunFile);
-            try {
-                return new SimpleDateFormat().parse(IOUtils.toString(fis));
-            } finally {
-                fis.close();
+        for (HydraSolrManager.AvalonRecord record : getDependentRecords(since)) {
+            if (isStopping()) {
+                break;
             }
-        } else {
-            return null;
+            indexRecord(record, watermark.start(null));
         }
-    }
-    
-    private void saveLastRunDate() throws IOException {
-        File lastRunFile = new File(getRequiredProperty("last-run-file"));
-        FileOutputStream fos = new FileOutputStream(lastRunFile);
-        try {
-            IOUtils.write(new SimpleDateFormat().format(new Date()), fos);
-        } finally {
-            fos.close();
-        }        
-    }
-
-    private Document getSolrAddDocFromMods(final InputStream sourceMods) throws Exception {
-        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
-        f.setNamespaceAware(true);
-        DocumentBuilder b = f.newDocumentBuilder();
-        DOMResult result = new DOMResult();
-        transformer.transform(new DOMSource(b.parse(sourceMods)), result);
-        return (Document) result.getNode();
-    }
-
-    public void postContent(String content) throws HttpException, IOException {
-        PostMethod post = new PostMethod(getRequiredProperty("solr-update-url"));
-        Part[] parts = {
-                new FilePart("add.xml", new ByteArrayPartSource("add.xml", content.getBytes("UTF-8")), "text/xml", "UTF-8")
-        };
-        post.setRequestEntity(
-                new MultipartRequestEntity(parts, post.getParams())
-        );
-        try {
-            getClient().executeMethod(post);
-            int status = post.getStatusCode();
-            if (status != HttpStatus.SC_OK) {
-                throw new RuntimeException("REST action \"" + getRequiredProperty("solr-update-url") + "\" failed: " + post.getStatusLine());
+        for (HydraSolrManager.AvalonRecord record : metrics.timed("enumerate", m.getPidsUpdatedSince(since))) {
+            if (isStopping()) {
+                break;
+            }
+            if (isInPartition(record) && !watermark.hasCompleted(record.getModified(), record.getId())) {
+                indexRecord(record, watermark.start(record.getModified(), record.getId()));
             }
-        } finally {
-            post.releaseConnection();
         }
+        finishSynchronization();
     }
 
-    public void commit() throws HttpException, IOException {
-        String url = getRequiredProperty("sol-update-url") + "?stream.body=%3Ccommit/%3E";
-        GetMethod get = new GetMethod(url);
+    /**
+     * Generates and writes the add document for a single record.  A failure
+     * is logged and recorded (see recordFailed()) rather than thrown, so
+     * that the run continues with the next record.
+     */
+    private void indexRecord(final HydraSolrManager.AvalonRecord record, final long ticket) throws Exception {
+        final long recordStart = System.nanoTime();
+        final boolean blacklisted;
+        final byte[] addDoc;
         try {
-            HttpClient client = new HttpClient();
-            client.executeMethod(get);
-            int status = get.getStatusCode();
-            if (status != HttpStatus.SC_OK) {
-                throw new RuntimeException("REST action \"" + url + "\" failed: " + get.getStatusLine());
-            }
-            LOGGER.info("Committed changes");
-        } finally {
-            get.releaseConnection();
+            blacklisted = isBlacklisted(record);
+            addDoc = generateAddDoc(record);
+        } catch (Throwable t) {
+            recordFailed(record, ticket, t);
+            return;
         }
-    }
-
-    public void optimize() throws HttpException, IOException {
-        String url = getRequiredProperty("sol-update-url") + "?stream.body=%3Coptimize/%3E";
-        GetMethod get = new GetMethod(url);
         try {
-            HttpClient client = new HttpClient();
-            client.executeMethod(get);
-            int status = get.getStatusCode();
-            if (status != HttpStatus.SC_OK) {
-                throw new RuntimeException("REST action \"" + url + "\" failed: " + get.getStatusLine());
-            }
-            LOGGER.info("Optimized index");
-        } finally {
-            get.releaseConnection();
+            writeAddDoc(record, blacklisted, addDoc, ticket);
+        } catch (Exception ex) {
+            recordFailed(record, ticket, ex);
         }
+        metrics.recordCompleted(record.getId(), System.nanoTime() - recordStart);
     }
 
-    private HttpClient getClient() {
-        return httpClient;
-    }
-
-    private boolean exists(String id) throws Exception {
-        if (id.startsWith("avalon:")) {
-            HydraSolrManager.AvalonRecord r = getRecord(id);
-            if (r == null) {
-                return false;
+    /**
+     * Gets the records on the dead-letter list that are still in solr (those
+     * that aren't are removed from it), to be retried before any others,
+     * or none if they aren't to be retried in this cycle of the daemon.
+     */
+    private List<HydraSolrManager.AvalonRecord> getDeadLetterRecords() throws Exception {
+        final List<HydraSolrManager.AvalonRecord> records = new ArrayList<HydraSolrManager.AvalonRecord>();
+        if (deadLetters == null || deadLetters.size() == 0) {
+            return records;
+        }
+        if (!retryDeadLetters) {
+            LOGGER.debug("Leaving the " + deadLetters.size() + " records that failed earlier for a later cycle.");
+            return records;
+        }
+        final List<String> ids = new ArrayList<String>();
+        for (DeadLetterList.Entry e : deadLetters.getEntries()) {
+            ids.add(e.getId());
+        }
+        final Map<String, HydraSolrManager.AvalonRecord> found = getSource().getRecordsByIds(ids);
+        for (String id : ids) {
+            if (found.containsKey(id)) {
+                records.add(found.get(id));
             } else {
-                id = r.getId();
+                LOGGER.info(id + " is no longer in solr, removing it from the dead-letter list.");
+                deadLetters.remove(id);
             }
         }
-        final int status = fcrepo.head(new URI(getURLForId(id))).perform().getStatusCode();
-        return (status >= 200 && status < 300);
-    }
-
-    private String getURLForMods(String id) {
-        return getURLForId(id) + "/descMetadata";
-    }
-
-    private String getURLForId(String id) {
-        return avalonFedoraBaseUrl + id.substring(0, 2) + "/" + id.substring(2, 4) + "/" + id.substring(4, 6) + "/"
-                + id.substring(6, 8) + "/" + id;
+        LOGGER.info("Retrying " + records.size() + " records that failed in earlier runs.");
+        return records;
     }
 
     /**
-     * Gets a record based on either its current id, or old id.
+     * Gets the records whose own modification date precedes the given date
+     * but which belong to a collection or have a section (master file) that
+     * has been modified since then, so that the values copied from those
+     * into their add documents are refreshed.  The changed collections and
+     * master files are also dropped from the metadata cache.  Solr's own
+     * indexes of isMemberOfCollection_ssim and section_id_ssim serve as the
+     * reverse index from a collection or master file to its media objects.
+     *
+     * Collections and master files are looked for from their own watermark
+     * (see getDependencyLastRunFile()) when there is one, since their
+     * changes don't move the watermark of the media objects.
      */
-    private HydraSolrManager.AvalonRecord getRecord(final String id) throws Exception {
-        HydraSolrManager m = new HydraSolrManager(getRequiredProperty("hydra-solr-url"));
-        List<HydraSolrManager.AvalonRecord> collection = m.getResultingIds("id:\"" + id + "\"");
-        if (collection.size() == 1) {
-            return collection.get(0);
-        } else {
-            collection = m.getResultingIds("identifier_ssim:\"" + id + "\"");
-            if (collection.size() == 1) {
-                return collection.get(0);
-            } else {
-                return null;
+    private List<HydraSolrManager.AvalonRecord> getDependentRecords(final Date since) throws Exception {
+        final List<HydraSolrManager.AvalonRecord> records = new ArrayList<HydraSolrManager.AvalonRecord>();
+        if (since == null || !Boolean.parseBoolean(getProperty("dependency-change-detection", "true"))) {
+            return records;
+        }
+        final long start = System.nanoTime();
+        final RecordSource m = getSource();
+        final List<String> changed = new ArrayList<String>();
+        final Date dependenciesSince = readDate(getDependencyLastRunFile());
+        dependencyWatermark = new WatermarkTracker(dependenciesSince, readIds(getDependencyLastRunFile()));
+        try {
+            for (HydraSolrManager.AvalonRecord dependency : m.getDependenciesUpdatedSince(
+                    dependenciesSince != null ? dependenciesSince : since)) {
+                if (dependencyWatermark.hasCompleted(dependency.getModified(), dependency.getId())) {
+                    // its dependents were regenerated by the run that saved the watermark
+                    continue;
+                }
+                dependencyWatermark.complete(dependencyWatermark.start(dependency.getModified(), dependency.getId()));
+                changed.add(dependency.getId());
+                recordCache.remove(dependency.getId());
+                if (dependency.getOldId() != null) {
+                    recordCache.remove(dependency.getOldId());
+                }
             }
+        } catch (HydraSolrManager.SolrQueryException ex) {
+            throw ex.getCause();
         }
+        if (changed.isEmpty()) {
+            metrics.recordSince("dependencies", start);
+            return records;
+        }
+        for (HydraSolrManager.AvalonRecord record : m.getDependentMediaObjects(changed).values()) {
+            final Date modified = record.getModified();
+            if (modified != null && !modified.before(since) && !watermark.hasCompleted(modified, record.getId())) {
+                // it will be enumerated anyway
+                continue;
+            }
+            if (isInPartition(record) && (deadLetters == null || !deadLetters.contains(record.getId()))) {
+                records.add(record);
+            }
+        }
+        metrics.recordSince("dependencies", start);
+        LOGGER.info(changed.size() + " collections and master files have changed, regenerating " + records.size()
+                + " records that depend on them.");
+        return records;
+    }
+
+    /**
+     * Restricts synchronization to the records in one of the given number
+     * of partitions of the id space (see getPartition()).
+     */
+    void setPartition(final int partition, final int partitionCount) {
+        if (partition < 0 || partition >= partitionCount) {
+            throw new IllegalArgumentException("Invalid partition " + partition + " of " + partitionCount + "!");
+        }
+        this.partition = partition;
+        this.partitionCount = partitionCount;
+    }
+
+    /**
+     * Gets the partition to which the record with the given id belongs when
+     * the records are split into the given number of partitions.  This
+     * depends only on the id, so is the same for every process.
+     */
+    static int getPartition(final String id, final int partitionCount) {
+        return (id.hashCode() & 0x7fffffff) % partitionCount;
+    }
+
+    private boolean isInPartition(final HydraSolrManager.AvalonRecord record) {
+        return partition < 0 || getPartition(record.getId(), partitionCount) == partition;
+    }
+
+    /**
+     * Asks the current synchronization to stop (without waiting for it),
+     * because another process may have taken over its output.  From then
+     * on nothing more is written: records still in progress or queued are
+     * dropped, and no further checkpoint is saved, so whoever takes over
+     * resumes from the last checkpoint saved before this was called.
+     */
+    void abandonSynchronization() {
+        abandoned = true;
+    }
+
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Returns true once the current synchronization should take on no more
+     * records, because it has been abandoned or the daemon is shutting down.
+     */
+    private boolean isStopping() {
+        return abandoned || stopRequested;
+    }
+
+    /**
+     * Copies each document (and its add doc index entry) from the given
+     * store into this indexer's add doc repository, skipping those already
+     * present with the same content, and saves the add doc index.
+     * @return the number of documents copied
+     */
+    int importAddDocs(final AddDocStore source, final AddDocIndex sourceIndex) throws IOException {
+        int copied = 0;
+        for (AddDocIndex.Entry e : sourceIndex.getEntries()) {
+            if (store != null && addDocIndex.isUnchanged(e.getFilename(), e.getDigest())
+                    && store.exists(e.getFilename())) {
+                continue;
+            }
+            final byte[] content = source.read(e.getFilename());
+            if (content == null) {
+                LOGGER.warn("Add doc " + e.getFilename() + " is indexed but missing, skipping it.");
+                continue;
+            }
+            if (store != null) {
+                store.write(e.getFilename(), content);
+            }
+            addDocIndex.update(e.getFilename(), e.getPid(), e.getVisibility(), e.getDigest());
+            copied ++;
+        }
+        if (store != null) {
+            store.flush();
+        }
+        addDocIndex.save();
+        return copied;
+    }
+
+    /**
+     * Adds the entries of the given dead-letter list to this indexer's (if
+     * it has one) and saves it.
+     */
+    void importDeadLetters(final DeadLetterList source) throws IOException {
+        if (deadLetters != null) {
+            for (DeadLetterList.Entry e : source.getEntries()) {
+                deadLetters.add(e);
+            }
+            deadLetters.save();
+        }
+    }
+
+    boolean hasDeadLetterList() {
+        return deadLetters != null;
+    }
+
+    private void startSynchronization(final Date since) throws IOException {
+        runDate = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+        watermark = new WatermarkTracker(since, getLastRunIds());
+        dependencyWatermark = null;
+        lastCheckpoint = System.currentTimeMillis();
+        if (modsCache != null) {
+            modsCache.startRun();
+        }
+    }
+
+    private void finishSynchronization() throws Exception {
+        if (abandoned) {
+            LOGGER.info("Synchronization abandoned, nothing after the last checkpoint has been saved.");
+            return;
+        }
+        if (pusher != null) {
+            pusher.flush();
+        }
+        checkpoint();
+        if (dependencyWatermark != null && dependencyWatermark.hasAdvanced()
+                && (deadLetters != null || errors.get() == 0) && !stopRequested) {
+            // every record depending on them has now been regenerated (unless
+            // a shutdown cut the run short)
+            saveDate(getDependencyLastRunFile(), dependencyWatermark.getWatermark(),
+                    dependencyWatermark.getCompletedAtWatermark());
+        }
+    }
+
+    /**
+     * Called once every output for a record has been written, to advance the
+     * watermark and save a checkpoint if one is due.
+     */
+    private void recordCompleted(final long ticket) throws IOException {
+        watermark.complete(ticket);
+        if (System.currentTimeMillis() - lastCheckpoint >= getIntProperty("checkpoint-interval-seconds", 60) * 1000L) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Called once a record has been indexed, to take it off the dead-letter
+     * list (if it was on it) and advance the watermark.
+     */
+    private void recordSucceeded(final HydraSolrManager.AvalonRecord record, final long ticket) throws IOException {
+        if (deadLetters != null) {
+            deadLetters.remove(record.getId());
+        }
+        recordCompleted(ticket);
+    }
+
+    /**
+     * Called when a record couldn't be indexed (after any retries).  With a
+     * dead-letter list the record is added to it to be retried by the next
+     * run, and is otherwise treated as complete so that the watermark may
+     * pass it; without one the watermark is held before it.
+     */
+    private void recordFailed(final HydraSolrManager.AvalonRecord record, final long ticket, final Throwable t) {
+        errors.incrementAndGet();
+        LOGGER.error("Unable to index " + record.getId() + "!", t);
+        if (deadLetters != null) {
+            deadLetters.add(record.getId(), t);
+            try {
+                recordCompleted(ticket);
+            } catch (IOException ex) {
+                LOGGER.error("Unable to save checkpoint!", ex);
+            }
+        } else {
+            watermark.fail(ticket);
+        }
+    }
+
+    /**
+     * Makes everything written so far durable and then saves the watermark,
+     * so that an interrupted run can resume from it.  Does nothing once the
+     * run has been abandoned.
+     */
+    private synchronized void checkpoint() throws IOException {
+        if (abandoned) {
+            return;
+        }
+        if (store != null) {
+            store.flush();
+        }
+        addDocIndex.save();
+        if (deadLetters != null) {
+            deadLetters.save();
+        }
+        if (watermark.hasAdvanced()) {
+            saveDate(new File(getRequiredProperty("last-run-file")), watermark.getWatermark(),
+                    watermark.getCompletedAtWatermark());
+            LOGGER.debug("Checkpoint: all records modified before "
+                    + HydraSolrManager.toISO8601DateString(watermark.getWatermark()) + " have been processed.");
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    /**
+     * Performs the same work as synchronizeAddDocRepository(), but splits
+     * the handling of each record into stages (fetch MODS, enrich from solr,
+     * transform, write) that each have a configurable number of workers,
+     * so that many records are in progress at once.  A failure to generate
+     * or write one record is counted as an error and doesn't affect the
+     * others.
+     */
+    private void synchronizeAddDocRepositoryInPipeline() throws Exception {
+        RecordSource m = getSource();
+        IndexingPipeline<IndexingTask> pipeline = new IndexingPipeline<IndexingTask>(
+                getIntProperty("pipeline-queue-size", 100), new IndexingPipeline.FailureHandler<IndexingTask>() {
+                    public void failed(String stageName, IndexingTask task, Throwable t) {
+                        LOGGER.debug("Stage \"" + stageName + "\" failed for " + task.record.getId() + ".");
+                        recordFailed(task.record, task.ticket, t);
+                    }
+                });
+        pipeline.addStage("fetch", getIntProperty("fetch-workers", 4), new IndexingPipeline.Stage<IndexingTask>() {
+            public void process(IndexingTask task) throws Exception {
+                task.mods = fetchMods(task.record.getId());
+            }
+        });
+        pipeline.addStage("enrich", getIntProperty("enrich-workers", 2), new IndexingPipeline.Stage<IndexingTask>() {
+            public void process(IndexingTask task) throws Exception {
+                final long start = System.nanoTime();
+                task.blacklisted = isBlacklisted(task.record);
+                task.collection = getRecord(task.record.getCollectionId());
+                task.sections = getSections(task.record);
+                metrics.recordSince("lookup", start);
+            }
+        });
+        pipeline.addStage("transform", getIntProperty("transform-workers", 2), new IndexingPipeline.Stage<IndexingTask>() {
+            public void process(IndexingTask task) throws Exception {
+                task.addDoc = generateAddDoc(task.record,
+                        getSolrAddDocFromMods(new ByteArrayInputStream(task.mods)), task.blacklisted,
+                        task.collection, task.sections);
+                task.mods = null;
+            }
+        });
+        pipeline.addStage("write", getIntProperty("write-workers", 1), new IndexingPipeline.Stage<IndexingTask>() {
+            public void process(IndexingTask task) throws Exception {
+                writeAddDoc(task.record, task.blacklisted, task.addDoc, task.ticket);
+                metrics.recordCompleted(task.record.getId(), System.nanoTime() - task.start);
+            }
+        });
+        final Date since = getLastRunDate();
+        startSynchronization(since);
+        IndexingPipeline.Feed<IndexingTask> feed = pipeline.start();
+        try {
+            if (Boolean.parseBoolean(getProperty("priority-scheduling", "false"))) {
+                feedByPriority(feed, since);
+            } else {
+                for (HydraSolrManager.AvalonRecord record : getDeadLetterRecords()) {
+                    if (isStopping()) {
+                        break;
+                    }
+                    feed.put(new IndexingTask(record, watermark.start(null)));
+                }
+                for (HydraSolrManager.AvalonRecord record : getDependentRecords(since)) {
+                    if (isStopping()) {
+                        break;
+                    }
+                    feed.put(new IndexingTask(record, watermark.start(null)));
+                }
+                for (HydraSolrManager.AvalonRecord record : metrics.timed("enumerate", m.getPidsUpdatedSince(since))) {
+                    if (isStopping()) {
+                        break;
+                    }
+                    if (isInPartition(record) && !watermark.hasCompleted(record.getModified(), record.getId())) {
+                        feed.put(new IndexingTask(record, watermark.start(record.getModified(), record.getId())));
+                    }
+                }
+            }
+        } finally {
+            feed.finish();
+        }
+        finishSynchronization();
+    }
+
+    /**
+     * Feeds the pipeline through a PriorityScheduler, so that urgent records
+     * are indexed ahead of the rest of a long (re)index, which may also be
+     * limited to bulk-max-records-per-second.  Records go to the priority
+     * lane if they
+     * <ul>
+     *   <li>were modified within the last priority-window-minutes, or are
+     *       modified while the run is in progress (solr is polled every
+     *       priority-poll-seconds for them),</li>
+     *   <li>belong to a blacklisted collection but aren't yet hidden, or</li>
+     *   <li>have a different visibility than when last indexed (noticed as
+     *       they're enumerated, up to bulk-queue-size records ahead of
+     *       those being indexed).</li>
+     * </ul>
+     * The records enumerated from solr are read on a separate thread and
+     * polling on another, while the calling thread passes the scheduled
+     * records on to the pipeline.  A record scheduled ahead of its turn
+     * (except for a change of visibility) is indexed again when it's
+     * reached, where it's normally found to be unchanged.
+     */
+    private void feedByPriority(final IndexingPipeline.Feed<IndexingTask> feed, final Date since) throws Exception {
+        final RecordSource m = getSource();
+        final PriorityScheduler<IndexingTask> scheduler = new PriorityScheduler<IndexingTask>(
+                getIntProperty("bulk-queue-size", 1000),
+                Double.parseDouble(getProperty("bulk-max-records-per-second", "0").trim()));
+        final FreshRecordPoller poller = new FreshRecordPoller(scheduler,
+                new Date(System.currentTimeMillis() - getIntProperty("priority-window-minutes", 60) * 60000L));
+        final Exception[] failure = new Exception[1];
+        final Thread enumerator = new Thread("enumerator") {
+            public void run() {
+                final ScheduledExecutorService polling = Executors.newSingleThreadScheduledExecutor();
+                try {
+                    poller.run();
+                    for (HydraSolrManager.AvalonRecord record : m.getDependentMediaObjects(
+                            new ArrayList<String>(getBlacklistedCollectionIds())).values()) {
+                        final AddDocIndex.Entry e = addDocIndex.get(record.getFilename());
+                        if (e != null && !AddDocIndex.HIDDEN.equals(e.getVisibility())) {
+                            poller.schedule(record);
+                        }
+                    }
+                    final long interval = getIntProperty("priority-poll-seconds", 60) * 1000L;
+                    polling.scheduleWithFixedDelay(poller, interval, interval, TimeUnit.MILLISECONDS);
+
+                    for (HydraSolrManager.AvalonRecord record : getDeadLetterRecords()) {
+                        if (isStopping()) {
+                            break;
+                        }
+                        scheduler.putBulk(new IndexingTask(record, watermark.start(null)));
+                    }
+                    for (HydraSolrManager.AvalonRecord record : getDependentRecords(since)) {
+                        if (isStopping()) {
+                            break;
+                        }
+                        scheduler.putBulk(new IndexingTask(record, watermark.start(null)));
+                    }
+                    for (HydraSolrManager.AvalonRecord record : metrics.timed("enumerate",
+                            m.getPidsUpdatedSince(since))) {
+                        if (isStopping()) {
+                            break;
+                        }
+                        if (isInPartition(record)
+                                && !watermark.hasCompleted(record.getModified(), record.getId())) {
+                            final IndexingTask task = new IndexingTask(record,
+                                    watermark.start(record.getModified(), record.getId()));
+                            if (isVisibilityChanged(record) && !poller.isScheduled(record)) {
+                                scheduler.putPriority(task);
+                            } else {
+                                scheduler.putBulk(task);
+                            }
+                        }
+                    }
+                } catch (Exception ex) {
+                    failure[0] = ex;
+                } finally {
+                    polling.shutdown();
+                    try {
+                        polling.awaitTermination(5, TimeUnit.MINUTES);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    scheduler.finish();
+                }
+            }
+        };
+        enumerator.start();
+        IndexingTask task;
+        while ((task = scheduler.take()) != null) {
+            if (isStopping()) {
+                // what's still waiting (and holding back the watermark) is
+                // left for the next run rather than taken at the bulk rate
+                scheduler.cancel();
+                break;
+            }
+            feed.put(task);
+        }
+        enumerator.join();
+        metrics.setCount("priority_records", scheduler.getPriorityCount());
+        metrics.setCount("bulk_records", scheduler.getBulkCount());
+        LOGGER.info(scheduler.getPriorityCount() + " records were scheduled with priority, "
+                + scheduler.getBulkCount() + " in bulk.");
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Returns true if the record would now be given a different visibility
+     * than the one recorded when it was last indexed, or if that isn't
+     * known (for an entry written before visibility was recorded).
+     */
+    private boolean isVisibilityChanged(final HydraSolrManager.AvalonRecord record) throws Exception {
+        final AddDocIndex.Entry e = addDocIndex.get(record.getFilename());
+        return e != null && (e.getVisibility() == null
+                || !e.getVisibility().equals(getVisibility(record, isBlacklisted(record))));
+    }
+
+    /**
+     * Finds the records modified since the latest modification it has seen
+     * (starting from a given date) and schedules them with priority.
+     */
+    private class FreshRecordPoller implements Runnable {
+
+        private final PriorityScheduler<IndexingTask> scheduler;
+
+        private Date since;
+
+        /**
+         * The modification date of each record scheduled so far, so that a
+         * record is only scheduled again if it has been modified again.
+         */
+        private final Map<String, Long> scheduled = new ConcurrentHashMap<String, Long>();
+
+        private FreshRecordPoller(final PriorityScheduler<IndexingTask> scheduler, final Date since) {
+            this.scheduler = scheduler;
+            this.since = since;
+        }
+
+        public void run() {
+            try {
+                int found = 0;
+                for (HydraSolrManager.AvalonRecord record : getSource().getPidsUpdatedSince(since)) {
+                    if (schedule(record)) {
+                        found ++;
+                    }
+                    if (record.getModified() != null && record.getModified().after(since)) {
+                        since = record.getModified();
+                    }
+                }
+                if (found > 0) {
+                    LOGGER.info("Scheduled " + found + " recently modified records with priority.");
+                }
+            } catch (RuntimeException ex) {
+                // the next poll will try again
+                LOGGER.warn("Unable to poll for recently modified records.", ex);
+            }
+        }
+
+        /**
+         * Returns true if the record has already been scheduled with
+         * priority since it was last modified.
+         */
+        private boolean isScheduled(final HydraSolrManager.AvalonRecord record) {
+            final Long modified = record.getModified() == null ? 0L : record.getModified().getTime();
+            return modified.equals(scheduled.get(record.getId()));
+        }
+
+        private boolean schedule(final HydraSolrManager.AvalonRecord record) {
+            if (!isInPartition(record)) {
+                return false;
+            }
+            final Long modified = record.getModified() == null ? 0L : record.getModified().getTime();
+            if (modified.equals(scheduled.put(record.getId(), modified))) {
+                return false;
+            }
+            // these are enumerated again in their turn, so mustn't move
+            // the watermark
+            scheduler.putPriority(new IndexingTask(record, watermark.start(null)));
+            return true;
+        }
+    }
+
+    /**
+     * The state of a single record as it moves through the pipeline.
+     */
+    private static class IndexingTask {
+
+        private final HydraSolrManager.AvalonRecord record;
+
+        private final long ticket;
+
+        /**
+         * When the record was read from solr (per System.nanoTime()).
+         */
+        private final long start = System.nanoTime();
+
+        private byte[] mods;
+
+        private boolean blacklisted;
+
+        private HydraSolrManager.AvalonRecord collection;
+
+        private List<HydraSolrManager.AvalonRecord> sections;
+
+        private byte[] addDoc;
+
+        private IndexingTask(HydraSolrManager.AvalonRecord record, long ticket) {
+            this.record = record;
+            this.ticket = ticket;
+        }
+    }
+
+    /**
+     * Writes the add document for a record to the repository and/or sends it
+     * to the target solr core, unless an identical document was already
+     * written (and sent) for it.  The record is reported to the watermark as
+     * complete once every output has been written.  When there's a target
+     * core the document's digest is only recorded once it has been sent, so
+     * that a document that couldn't be sent is sent again by the next run.
+     * Nothing is written once the run has been abandoned.
+     */
+    private void writeAddDoc(final HydraSolrManager.AvalonRecord record, boolean blacklisted, byte[] addDoc,
+            final long ticket) throws Exception {
+        if (abandoned) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            writeAddDocUntimed(record, blacklisted, addDoc, ticket);
+        } finally {
+            metrics.recordSince("write", start);
+        }
+    }
+
+    private void writeAddDocUntimed(final HydraSolrManager.AvalonRecord record, boolean blacklisted,
+            final byte[] content, final long ticket) throws Exception {
+        final String filename = record.getFilename();
+        final String digest = AddDocIndex.digest(content);
+        final String pid = record.getOldId() != null ? record.getOldId() : record.getId();
+        final String visibility = getVisibility(record, blacklisted);
+        if (addDocIndex.isUnchanged(filename, digest)
+                && (store == null || store.exists(filename))) {
+            LOGGER.debug("Add doc for " + record.getId() + " is unchanged.");
+            unchangedRecords.incrementAndGet();
+            addDocIndex.update(filename, pid, visibility, digest);
+            recordSucceeded(record, ticket);
+            return;
+        }
+        LOGGER.info("Generating add doc for " + (blacklisted ? "blacklisted " : "") + record.getId()
+                + " belonging to collection " + record.getCollectionId() + "...");
+        if (store != null) {
+            store.write(filename, content);
+        }
+        if (pusher != null) {
+            pusher.add(new String(content, "UTF-8"), new SolrUpdatePusher.Callback() {
+                public void sent() {
+                    addDocIndex.update(filename, pid, visibility, digest);
+                    indexedRecords.incrementAndGet();
+                    try {
+                        recordSucceeded(record, ticket);
+                    } catch (IOException ex) {
+                        LOGGER.error("Unable to save checkpoint!", ex);
+                    }
+                }
+
+                public void failed(Throwable t) {
+                    LOGGER.error("Unable to send add doc for " + record.getId() + " to solr!");
+                    // the stored copy (if any) is no longer what solr has
+                    addDocIndex.clearDigest(filename, pid, visibility);
+                    recordFailed(record, ticket, t);
+                }
+            });
+        } else {
+            addDocIndex.update(filename, pid, visibility, digest);
+            indexedRecords.incrementAndGet();
+            recordSucceeded(record, ticket);
+        }
+    }
+
+    /**
+     * Updates the add document of every indexed record that no longer exists
+     * in avalon so that it is HIDDEN.  The records to test are taken from the
+     * add doc index rather than by listing the repository, and each hidden
+     * document is updated in place without being parsed.
+     */
+    public void shadowAnyDeletedRecords() throws Exception {
+        final long start = System.nanoTime();
+        try {
+            shadowAnyDeletedRecordsUntimed();
+        } finally {
+            metrics.recordSince("shadow", start);
+        }
+    }
+
+    private void shadowAnyDeletedRecordsUntimed() throws Exception {
+        if (addDocIndex.size() == 0) {
+            buildAddDocIndexFromRepository();
+        }
+        Set<String> liveIds = null;
+        if (Boolean.parseBoolean(getProperty("bulk-deletion-detection", "false"))) {
+            liveIds = getSource().getAllMediaObjectIds();
+        }
+        int fedoraChecks = 0;
+        for (AddDocIndex.Entry entry : addDocIndex.getEntries()) {
+            if (AddDocIndex.HIDDEN.equals(entry.getVisibility())) {
+                continue;
+            }
+            final String pid = entry.getPid();
+            try {
+                final boolean exists;
+                if (liveIds == null) {
+                    exists = exists(pid);
+                } else if (liveIds.contains(pid)) {
+                    exists = true;
+                } else if (pid.startsWith("avalon:")) {
+                    // an old id is only resolvable through solr, so if solr
+                    // doesn't know it the record is gone
+                    exists = false;
+                } else {
+                    // solr may simply not have caught up, so ask fedora
+                    exists = exists(pid);
+                    fedoraChecks ++;
+                }
+                if (!exists) {
+                    hideDeletedRecord(entry);
+                }
+            } catch (Exception ex) {
+                errors.incrementAndGet();
+                LOGGER.error("Error testing for existence of object " + pid + "!", ex);
+            }
+        }
+        if (liveIds != null) {
+            LOGGER.info("Compared " + addDocIndex.size() + " indexed records against " + liveIds.size()
+                    + " ids in solr; " + fedoraChecks + " required a check against fedora.");
+        }
+        if (pusher != null) {
+            pusher.flush();
+        }
+        if (store != null) {
+            store.flush();
+        }
+        addDocIndex.save();
+    }
+
+    /**
+     * Marks the add document for a deleted record as HIDDEN.  When documents
+     * are only sent to the target solr core there's no stored copy to update,
+     * so the document is deleted from that core instead (and its digest
+     * forgotten, so that it's sent again should the record reappear).
+     */
+    private void hideDeletedRecord(final AddDocIndex.Entry entry) throws Exception {
+        final String pid = entry.getPid();
+        if (store == null) {
+            LOGGER.debug("Deleting deleted record " + pid + " from solr...");
+            pusher.delete(namespaceId(pid));
+            addDocIndex.clearDigest(entry.getFilename(), pid, AddDocIndex.HIDDEN);
+            return;
+        }
+        final byte[] original = store.read(entry.getFilename());
+        if (original == null) {
+            LOGGER.debug("Removing index entry for missing document " + entry.getFilename() + ".");
+            addDocIndex.remove(entry.getFilename());
+            return;
+        }
+        LOGGER.debug("Hiding deleted record for " + pid + "...");
+        final String hidden = setVisibility(new String(original, "UTF-8"), AddDocIndex.HIDDEN);
+        final byte[] content = hidden.getBytes("UTF-8");
+        store.write(entry.getFilename(), content);
+        if (pusher != null) {
+            pusher.add(hidden, new SolrUpdatePusher.Callback() {
+                public void sent() {
+                    addDocIndex.update(entry.getFilename(), pid, AddDocIndex.HIDDEN, AddDocIndex.digest(content));
+                }
+
+                public void failed(Throwable t) {
+                    errors.incrementAndGet();
+                    LOGGER.error("Unable to send hidden add doc for " + pid + " to solr!", t);
+                    // left visible in the index, so the next pass tries again
+                    addDocIndex.clearDigest(entry.getFilename(), pid, entry.getVisibility());
+                }
+            });
+        } else {
+            addDocIndex.update(entry.getFilename(), pid, AddDocIndex.HIDDEN, AddDocIndex.digest(content));
+        }
+    }
+
+    private static final Pattern VISIBILITY_FIELD = Pattern
+            .compile("(<field name=\"shadowed_location_facet\">)([^<]*)(</field>)");
+
+    /**
+     * Populates the add doc index from the files in the add doc repository;
+     * used when no index has yet been saved.
+     */
+    private void buildAddDocIndexFromRepository() throws IOException {
+        if (store == null) {
+            return;
+        }
+        final List<String> names = store.list();
+        LOGGER.info("Building add doc index from " + names.size() + " documents in " + store + "...");
+        for (String name : names) {
+            final byte[] content = store.read(name);
+            final Matcher m = VISIBILITY_FIELD.matcher(new String(content, "UTF-8"));
+            addDocIndex.update(name, AddDocIndex.getPidForFilename(name), m.find() ? m.group(2) : null,
+                    AddDocIndex.digest(content));
+        }
+        addDocIndex.save();
+    }
+
+    /**
+     * Replaces the value of the shadowed_location_facet field in the given
+     * serialized add document.
+     */
+    static String setVisibility(final String addDoc, final String visibility) {
+        final Matcher m = VISIBILITY_FIELD.matcher(addDoc);
+        if (!m.find()) {
+            throw new RuntimeException("No shadowed_location_facet field found!");
+        }
+        return addDoc.substring(0, m.start(2)) + visibility + addDoc.substring(m.end(2));
+    }
+
+    private HashSet<String> blacklistedCollectionIds = null;
+
+    private synchronized boolean isBlacklisted(HydraSolrManager.AvalonRecord record) throws Exception {
+        return getBlacklistedCollectionIds().contains(record.getCollectionId());
+    }
+
+    /**
+     * Gets the ids (and old ids) of the blacklisted collections, looking
+     * them up the first time.
+     */
+    private synchronized Set<String> getBlacklistedCollectionIds() throws Exception {
+        if (blacklistedCollectionIds == null) {
+            final HashSet<String> ids = new HashSet<String>();
+            for (String id : getRequiredProperty("collection-blacklist").split(",")) {
+                id = id.trim();
+                HydraSolrManager.AvalonRecord c = getRecord(id);
+                if (c == null) {
+                    throw new RuntimeException("Unable to find blacklisted collection: " + id);
+                }
+                ids.add(id);
+                ids.add(c.getId());
+            }
+            if (ids.isEmpty()) {
+                LOGGER.warn("No blacklisted collections, likely due to a configuration error!");
+            }
+            blacklistedCollectionIds = ids;
+        }
+        return blacklistedCollectionIds;
+    }
+
+    /**
+     * Generates the add document for a record.  Without a MODS cache, the
+     * MODS is transformed as it's received from fedora; otherwise it's
+     * fetched (or revalidated) in full first, so that it can be cached.
+     */
+    public byte[] generateAddDoc(HydraSolrManager.AvalonRecord rec) throws Exception {
+        final AddDocBuilder doc = modsCache == null ? transformMods(rec.getId())
+                : getSolrAddDocFromMods(new ByteArrayInputStream(fetchMods(rec.getId())));
+        final long start = System.nanoTime();
+        final boolean blacklisted = isBlacklisted(rec);
+        final HydraSolrManager.AvalonRecord collection = getRecord(rec.getCollectionId());
+        final List<HydraSolrManager.AvalonRecord> sections = getSections(rec);
+        metrics.recordSince("lookup", start);
+        return generateAddDoc(rec, doc, blacklisted, collection, sections);
+    }
+
+    /**
+     * Transforms the MODS record for the given id as it's read from the
+     * record source.  The time taken is recorded as "transform", since the
+     * fetch and the transform overlap.
+     */
+    private AddDocBuilder transformMods(final String id) throws Exception {
+        return getSource().readMods(id, new FedoraClient.BodyReader<AddDocBuilder>() {
+            public AddDocBuilder read(InputStream body) throws Exception {
+                return getSolrAddDocFromMods(body);
+            }
+        });
+    }
+
+    /**
+     * Fetches the MODS record for the given id into memory.  With a MODS
+     * cache, a cached copy is used if fedora confirms that it's current.
+     */
+    private byte[] fetchMods(final String id) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            if (modsCache == null) {
+                return getSource().getMods(id, null).getBody();
+            }
+            final FedoraClient.Content cached = modsCache.get(id);
+            final FedoraClient.Content mods = getSource().getMods(id, cached);
+            if (mods == cached) {
+                metrics.increment("mods_not_modified");
+            } else if (mods.hasValidator()) {
+                try {
+                    modsCache.put(id, mods);
+                } catch (IOException ex) {
+                    LOGGER.warn("Unable to cache the MODS for " + id + ".", ex);
+                }
+            }
+            return mods.getBody();
+        } finally {
+            metrics.recordSince("fetch", start);
+        }
+    }
+
+    /**
+     * Gets the records for each section (master file) of the given record, in
+     * order, with a single query.
+     */
+    private List<HydraSolrManager.AvalonRecord> getSections(HydraSolrManager.AvalonRecord rec) throws Exception {
+        final List<String> sectionIds = rec.getSectionIds();
+        if (sectionIds.isEmpty()) {
+            return new ArrayList<HydraSolrManager.AvalonRecord>();
+        }
+        RecordSource m = getSource();
+        Map<String, HydraSolrManager.AvalonRecord> parts = m.getRecordsByIds(sectionIds);
+        List<HydraSolrManager.AvalonRecord> sections = new ArrayList<HydraSolrManager.AvalonRecord>();
+        for (String partId : sectionIds) {
+            HydraSolrManager.AvalonRecord part = parts.get(partId);
+            if (part == null) {
+                throw new RuntimeException("Unable to find section " + partId + " of record " + rec.getId() + "!");
+            }
+            sections.add(part);
+        }
+        return sections;
+    }
+
+    /**
+     * Adds the fields derived from solr to the document produced by the XSLT
+     * and serializes the result as UTF-8.
+     */
+    byte[] generateAddDoc(HydraSolrManager.AvalonRecord rec, AddDocBuilder doc, boolean blacklisted,
+            HydraSolrManager.AvalonRecord collection, List<HydraSolrManager.AvalonRecord> sections)
+            throws Exception {
+        final String oldId = rec.getOldId();
+        final String id = rec.getId();
+        doc.addField("id", namespaceId(oldId != null ? oldId : id));
+        doc.addField("id_text", namespaceId(oldId != null ? oldId : id));
+        doc.addField("avalon_url_display", getRequiredProperty("avalon-url"));
+        doc.addField("duration_display", rec.getDuration());
+        doc.addField("format_facet", "Online");
+        if (rec.isMovingImage()) {
+            doc.addField("format_facet", "Online Video");
+            doc.addField("format_text", "Online Video");
+            doc.addField("format_facet", "Video");
+        }
+        if (rec.isAudioRecording()) {
+            doc.addField("format_facet", "Streaming Audio");
+            doc.addField("format_text", "Streaming Audio");
+            doc.addField("format_text", "Sound Recording");
+        }
+        doc.addField("shadowed_location_facet", getVisibility(rec, blacklisted));
+
+        doc.addField("digital_collection_facet", collection.getName());
+        doc.addField("digital_collection_text", collection.getName(), "0.25");
+        doc.addField("unit_display", collection.getUnit());
+        doc.addField("unit_text", collection.getUnit(), "0.25");
+
+        // For each section...
+        boolean thumb = false;
+        boolean audio = false;
+        for (HydraSolrManager.AvalonRecord part : sections) {
+            if (!thumb && part.hasThumbnail()) {
+                doc.addField("thumbnail_url_display",
+                        getRequiredProperty("avalon-url") + "/master_files/" + part.getId() + "/thumbnail");
+                thumb = true;
+            }
+            if (part.isAudioRecording()) {
+                audio = true;
+            } else {
+                if (audio) {
+                    throw new RuntimeException("Record " + id + " has video clips after audio clips!");
+                }
+            }
+            doc.addField("part_pid_display", part.getId());
+            doc.addField("part_duration_display", part.getDuration());
+            doc.addField("display_aspect_ratio_display", part.getAspectRatio());
+            doc.addField("part_label_display", part.getTitle());
+        }
+
+        final long start = System.nanoTime();
+        try {
+            return addDocWriters.get().write(doc);
+        } finally {
+            metrics.recordSince("serialize", start);
+        }
+    }
+
+    /**
+     * Gets the value of the shadowed_location_facet for a record.
+     */
+    private String getVisibility(HydraSolrManager.AvalonRecord rec, boolean blacklisted) {
+        if (blacklisted) {
+            return "HIDDEN";
+        } else if (!rec.isPublished()) {
+            return "HIDDEN";
+        } else if (rec.isHidden()) {
+            return "UNDISCOVERABLE";
+        } else {
+            return "VISIBLE";
+        }
+    }
+
+    public String namespaceId(final String id) {
+        if (id.startsWith("avalon:")) {
+            return id;
+        } else {
+            return "avalon:" + id;
+        }
+    }
+
+    /**
+     * Gets the watermark saved by the last run: the modification date up to
+     * which every record had been processed (see getLastRunIds() for those
+     * modified at that date).  Files written before the watermark was
+     * recorded in ISO-8601 contain the (local) time at which that run
+     * finished, and are still accepted.
+     */
+    Date getLastRunDate() throws IOException, ParseException {
+        return readDate(new File(getRequiredProperty("last-run-file")));
+    }
+
+    void saveLastRunDate(final Date date) throws IOException {
+        saveDate(new File(getRequiredProperty("last-run-file")), date);
+    }
+
+    /**
+     * Gets the file holding the latest modification date of the collections
+     * and master files whose dependent records have been regenerated, by
+     * default dependency-last-run.txt next to the last-run-file.
+     */
+    private File getDependencyLastRunFile() {
+        return new File(getProperty("dependency-last-run-file",
+                new File(new File(getRequiredProperty("last-run-file")).getAbsoluteFile().getParentFile(),
+                        "dependency-last-run.txt").getPath()).trim());
+    }
+
+    /**
+     * Gets the ids saved by the last run with its watermark: those of the
+     * records modified at exactly that date which had already been
+     * processed, and needn't be again.
+     */
+    private List<String> getLastRunIds() throws IOException {
+        return readIds(new File(getRequiredProperty("last-run-file")));
+    }
+
+    /**
+     * Reads the date on the first line of a watermark file, or returns null
+     * if there is no such file.
+     */
+    static Date readDate(final File file) throws IOException, ParseException {
+        if (file.exists()) {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                final String value = IOUtils.toString(fis, "UTF-8").trim().split("\n", 2)[0].trim();
+                try {
+                    return HydraSolrManager.parseISO8601Date(value);
+                } catch (ParseException ex) {
+                    return new SimpleDateFormat().parse(value);
+                }
+            } finally {
+                fis.close();
+            }
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the ids on the lines after the date in a watermark file.
+     */
+    static List<String> readIds(final File file) throws IOException {
+        final List<String> ids = new ArrayList<String>();
+        if (file.exists()) {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                final List<String> lines = IOUtils.readLines(fis, "UTF-8");
+                for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                    if (line.trim().length() > 0) {
+                        ids.add(line.trim());
+                    }
+                }
+            } finally {
+                fis.close();
+            }
+        }
+        return ids;
+    }
+
+    private static void saveDate(final File file, final Date date) throws IOException {
+        saveDate(file, date, Collections.<String>emptyList());
+    }
+
+    /**
+     * Writes a watermark file: the date on the first line followed by the
+     * given ids, one per line.
+     */
+    static void saveDate(final File file, final Date date, final Collection<String> ids)
+            throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            final StringBuilder content = new StringBuilder(HydraSolrManager.toISO8601DateString(date));
+            for (String id : ids) {
+                content.append('\n').append(id);
+            }
+            IOUtils.write(content.toString(), fos, "UTF-8");
+        } finally {
+            fos.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
 
+    /**
+     * Transforms the MODS record read from the given stream into a solr add
+     * document.  The MODS is parsed directly by the transformer as it is
+     * read, and its output goes straight into an AddDocBuilder, so neither
+     * is ever built into a DOM.
+     */
+    AddDocBuilder getSolrAddDocFromMods(final InputStream sourceMods) throws Exception {
+        final long start = System.nanoTime();
+        final AddDocBuilder doc = new AddDocBuilder();
+        final Transformer transformer = transformers.get();
+        transformer.setParameter("run-date", runDate);
+        transformer.transform(new StreamSource(sourceMods), new SAXResult(doc.getContentHandler()));
+        metrics.recordSince("transform", start);
+        return doc;
+    }
+
+    private boolean exists(String id) throws Exception {
+        if (id.startsWith("avalon:")) {
+            HydraSolrManager.AvalonRecord r = getRecord(id);
+            if (r == null) {
+                return false;
+            } else {
+                id = r.getId();
+            }
+        }
+        final long start = System.nanoTime();
+        try {
+            return getSource().exists(id);
+        } finally {
+            metrics.recordSince("exists", start);
+        }
+    }
+
+    /**
+     * Gets a record based on either its current id, or old id.  Records that
+     * are found are cached (by the id used to look them up) in the metadata
+     * cache.
+     */
+    private HydraSolrManager.AvalonRecord getRecord(final String id) throws Exception {
+        HydraSolrManager.AvalonRecord record = recordCache.get(id);
+        if (record == null) {
+            record = getSource().getRecord(id);
+            if (record != null) {
+                recordCache.put(id, record);
+            }
+        }
+        return record;
     }
 
 }
@@ -0,0 +1,128 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to a service that appears to be down.  After a number of
+ * consecutive failures the circuit opens: callers then wait rather than
+ * failing (so that a queue of records isn't burned through while the
+ * service is unavailable) until the open interval has passed, at which
+ * point a single trial call is let through.  If it succeeds the circuit
+ * closes and every waiting caller proceeds, otherwise it opens again.
+ *
+ * A caller that has waited longer than the maximum wait is given a
+ * CircuitOpenException instead, so that a service that stays down doesn't
+ * stall a run forever.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String name;
+
+    private final int failureThreshold;
+
+    private final long openMs;
+
+    private final long maxWaitMs;
+
+    private int consecutiveFailures = 0;
+
+    /**
+     * When the circuit last opened, or 0 if it is closed.
+     */
+    private long openedAt = 0;
+
+    private boolean trialInProgress = false;
+
+    private int timesOpened = 0;
+
+    public CircuitBreaker(final String name, final int failureThreshold, final long openMs, final long maxWaitMs) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold must be at least 1!");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Returns once a call may be made, waiting while the circuit is open.
+     * @throws CircuitOpenException if the circuit stays open for longer than
+     *         the maximum wait
+     */
+    public synchronized void acquire() throws InterruptedException, CircuitOpenException {
+        final long giveUpAt = System.currentTimeMillis() + maxWaitMs;
+        while (openedAt != 0) {
+            final long now = System.currentTimeMillis();
+            if (!trialInProgress && now >= openedAt + openMs) {
+                trialInProgress = true;
+                LOGGER.info("Trying " + name + " again...");
+                return;
+            }
+            if (now >= giveUpAt) {
+                throw new CircuitOpenException(name);
+            }
+            wait(Math.max(1, Math.min(giveUpAt, trialInProgress ? giveUpAt : openedAt + openMs) - now));
+        }
+    }
+
+    /**
+     * Records that a call made after acquire() reached the service.
+     */
+    public synchronized void succeeded() {
+        consecutiveFailures = 0;
+        if (openedAt != 0) {
+            LOGGER.info(name + " is available again.");
+            openedAt = 0;
+            trialInProgress = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records that a call made after acquire() failed in a way that suggests
+     * the service is unavailable.
+     */
+    public synchronized void failed() {
+        consecutiveFailures ++;
+        if (trialInProgress || (openedAt == 0 && consecutiveFailures >= failureThreshold)) {
+            if (openedAt == 0) {
+                timesOpened ++;
+                LOGGER.warn(name + " appears to be unavailable after " + consecutiveFailures
+                        + " consecutive failures, pausing requests for " + openMs + "ms.");
+            }
+            openedAt = System.currentTimeMillis();
+            trialInProgress = false;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return openedAt != 0;
+    }
+
+    /**
+     * Gets the number of times the circuit has opened.
+     */
+    public synchronized int getTimesOpened() {
+        return timesOpened;
+    }
+
+    /**
+     * Thrown when a call isn't made because the service has been
+     * unavailable for longer than the maximum wait.
+     */
+    public static class CircuitOpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(final String name) {
+            super(name + " has been unavailable for too long!");
+        }
+    }
+}
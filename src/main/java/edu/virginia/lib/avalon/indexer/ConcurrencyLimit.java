@@ -0,0 +1,91 @@
+package edu.virginia.lib.avalon.indexer;
+
+/**
+ * Limits the number of concurrent calls to a service, adapting the limit to
+ * the latency and errors observed (additive increase, multiplicative
+ * decrease).  The limit grows by about one for every "limit" calls that
+ * succeed without queueing delay, and is cut whenever a call fails or takes
+ * much longer than the fastest recent calls, which indicates that requests
+ * are queueing in the service.  A single decrease is made for all of the
+ * calls that were in flight at the time, rather than one for each of them.
+ */
+public class ConcurrencyLimit {
+
+    /**
+     * The factor by which a call's latency may exceed the baseline before
+     * it is taken as a sign of overload.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * Latencies under this are never taken as a sign of overload, since on
+     * a fast network they are mostly noise.
+     */
+    private static final long MIN_SIGNIFICANT_NANOS = 5000000L;
+
+    private static final double BACKOFF_RATIO = 0.75;
+
+    private final int min;
+
+    private final int max;
+
+    private double limit;
+
+    private int inFlight = 0;
+
+    /**
+     * The (slowly decaying) minimum latency observed, in nanoseconds.
+     */
+    private double baselineNanos = 0;
+
+    private long lastDecrease = 0;
+
+    public ConcurrencyLimit(final int min, final int initial, final int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid concurrency limits " + min + " - " + max + "!");
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * Waits until a call may be made, and returns its start time (per
+     * System.nanoTime()) to be passed to release().
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight ++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a call begun with acquire(), adjusting the limit.
+     * @param overloaded true if the call failed in a way that suggests the
+     *        service is overloaded or unavailable
+     */
+    public synchronized void release(final long start, final boolean overloaded) {
+        inFlight --;
+        final long now = System.nanoTime();
+        final long latency = now - start;
+        if (!overloaded) {
+            baselineNanos = baselineNanos == 0 || latency < baselineNanos ? latency
+                    : baselineNanos + (latency - baselineNanos) * 0.001;
+        }
+        if (overloaded || (latency > MIN_SIGNIFICANT_NANOS && latency > baselineNanos * TOLERANCE)) {
+            if (start > lastDecrease) {
+                limit = Math.max(min, limit * BACKOFF_RATIO);
+                lastDecrease = now;
+            }
+        } else {
+            limit = Math.min(max, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+}
@@ -0,0 +1,167 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent list of the records that couldn't be indexed (even after
+ * retrying), so that a run may move past them and they may be retried at
+ * the start of the next run.  For each record it stores the number of runs
+ * in which it has failed, when it first failed and the last error.
+ *
+ * The list is kept in memory and saved as a tab-delimited text file with
+ * one line per record.
+ */
+public class DeadLetterList {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeadLetterList.class);
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    public DeadLetterList(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    final String[] values = line.split("\t", 4);
+                    if (values.length == 4) {
+                        entries.put(values[0], new Entry(values[0], Integer.parseInt(values[1]),
+                                Long.parseLong(values[2]), values[3]));
+                    } else {
+                        LOGGER.warn("Skipping malformed line in " + file + ": " + line);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+            LOGGER.debug("Loaded " + entries.size() + " entries from " + file + ".");
+        }
+    }
+
+    /**
+     * Records that the record with the given id couldn't be indexed.
+     */
+    public synchronized void add(final String id, final Throwable t) {
+        final Entry previous = entries.get(id);
+        final String error = String.valueOf(t).replaceAll("\\s+", " ");
+        if (previous == null) {
+            entries.put(id, new Entry(id, 1, System.currentTimeMillis(), error));
+        } else {
+            entries.put(id, new Entry(id, previous.failures + 1, previous.firstFailed, error));
+        }
+    }
+
+    /**
+     * Adds (or replaces) an entry, for instance one from another list.
+     */
+    public synchronized void add(final Entry e) {
+        entries.put(e.id, e);
+    }
+
+    /**
+     * Records that the record with the given id has been indexed.
+     */
+    public synchronized void remove(final String id) {
+        entries.remove(id);
+    }
+
+    public synchronized boolean contains(final String id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Gets a snapshot of the current entries, in the order they were added.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the list to its file, replacing the previous version only once
+     * the new one is complete.
+     */
+    public synchronized void save() throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            for (Entry e : entries.values()) {
+                w.write(e.id);
+                w.write('\t');
+                w.write(String.valueOf(e.failures));
+                w.write('\t');
+                w.write(String.valueOf(e.firstFailed));
+                w.write('\t');
+                w.write(e.error);
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static class Entry {
+
+        private final String id;
+
+        private final int failures;
+
+        private final long firstFailed;
+
+        private final String error;
+
+        private Entry(String id, int failures, long firstFailed, String error) {
+            this.id = id;
+            this.failures = failures;
+            this.firstFailed = firstFailed;
+            this.error = error;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Gets the number of times (runs) the record has failed.
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Gets the time (in milliseconds since the epoch) at which the record
+         * first failed.
+         */
+        public long getFirstFailed() {
+            return firstFailed;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The original add document repository layout: a single directory with one
+ * file per document.  Each file is written to a temporary file first and
+ * then renamed into place so that it is never left partially written.
+ */
+public class DirectoryAddDocStore implements AddDocStore {
+
+    private final File directory;
+
+    public DirectoryAddDocStore(File directory) {
+        this.directory = directory;
+    }
+
+    public boolean exists(String name) {
+        return new File(directory, name).exists();
+    }
+
+    public byte[] read(String name) throws IOException {
+        final File file = new File(directory, name);
+        return file.exists() ? FileUtils.readFileToByteArray(file) : null;
+    }
+
+    public void write(String name, byte[] content) throws IOException {
+        final File file = new File(directory, name);
+        final File tempFile = new File(directory, "." + name + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public List<String> list() {
+        final List<String> names = new ArrayList<String>();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile() && f.getName().endsWith(".xml") && !f.getName().startsWith(".")) {
+                    names.add(f.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    public String toString() {
+        return directory.getPath();
+    }
+}
@@ -0,0 +1,188 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * The minimal access to fedora needed by the indexer, made through the
+ * shared HttpTransport.  Credentials are sent with every request rather than
+ * in response to a challenge, which would double the number of requests.
+ */
+public class FedoraClient {
+
+    private final HttpTransport transport;
+
+    private final String authorization;
+
+    public FedoraClient(final HttpTransport transport, final String username, final String password) {
+        this.transport = transport;
+        try {
+            this.authorization = "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes("UTF-8"));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Gets the content at the given URL unless it's unchanged from the given
+     * copy (if any), which fedora reports (with a 304) when the copy's ETag
+     * or Last-Modified date still match.
+     * @return the given copy if it's unchanged, otherwise the new content
+     *         along with its validators
+     * @throws StatusException if the response status isn't 2xx or 304
+     */
+    public Content get(final String url, final Content cached) throws IOException {
+        final HttpGet get = new HttpGet(url);
+        if (cached != null && cached.getETag() != null) {
+            get.setHeader("If-None-Match", cached.getETag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            get.setHeader("If-Modified-Since", cached.getLastModified());
+        }
+        final HttpResponse response = execute(get);
+        try {
+            if (cached != null && response.getStatusLine().getStatusCode() == 304) {
+                return cached;
+            }
+            checkStatus(url, response);
+            return new Content(EntityUtils.toByteArray(response.getEntity()), getHeader(response, "ETag"),
+                    getHeader(response, "Last-Modified"));
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Gets the content at the given URL, passing the response body to the
+     * given reader as it's received rather than reading it into memory
+     * first.  The connection is released once the reader returns.
+     * @return whatever the reader returns
+     * @throws StatusException if the response status isn't 2xx
+     */
+    public <T> T stream(final String url, final BodyReader<T> reader) throws Exception {
+        final HttpGet get = new HttpGet(url);
+        final HttpResponse response = execute(get);
+        try {
+            checkStatus(url, response);
+            final InputStream body = response.getEntity().getContent();
+            try {
+                return reader.read(body);
+            } finally {
+                body.close();
+            }
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    private static String getHeader(final HttpResponse response, final String name) {
+        final Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Returns true if the resource at the given URL exists, false if fedora
+     * reports it as not found or gone.
+     */
+    public boolean exists(final String url) throws IOException {
+        final HttpHead head = new HttpHead(url);
+        try {
+            final int status = execute(head).getStatusLine().getStatusCode();
+            if (status == 404 || status == 410) {
+                return false;
+            } else if (status >= 200 && status < 300) {
+                return true;
+            } else {
+                throw new StatusException(url, status);
+            }
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    private HttpResponse execute(final HttpRequestBase request) throws IOException {
+        request.setHeader("Authorization", authorization);
+        return transport.getClient().execute(request);
+    }
+
+    private void checkStatus(final String url, final HttpResponse response) throws StatusException {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 300) {
+            throw new StatusException(url, status);
+        }
+    }
+
+    /**
+     * Consumes the body of a response passed to stream().
+     */
+    public interface BodyReader<T> {
+
+        T read(InputStream body) throws Exception;
+
+    }
+
+    /**
+     * The content of a resource and the validators (either of which may be
+     * null) with which fedora can tell whether it has since changed.
+     */
+    public static class Content {
+
+        private final byte[] body;
+
+        private final String eTag;
+
+        private final String lastModified;
+
+        public Content(final byte[] body, final String eTag, final String lastModified) {
+            this.body = body;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns true if the content can be revalidated, so is worth caching.
+         */
+        public boolean hasValidator() {
+            return eTag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * Thrown when fedora responds with an unexpected status.
+     */
+    public static class StatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public StatusException(final String url, final int statusCode) {
+            super("Received status " + statusCode + " for " + url + "!");
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
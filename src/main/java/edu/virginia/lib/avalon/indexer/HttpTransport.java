@@ -0,0 +1,155 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The single pooled HTTP client through which every request to fedora and
+ * solr is made, so that connection limits, keep-alive and timeouts are
+ * configured (and connections reused) in one place.  Responses are
+ * requested and transparently decompressed with gzip or deflate.
+ */
+public class HttpTransport {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient client;
+
+    private final RequestConfig defaultConfig;
+
+    /**
+     * @param maxConnections the maximum number of connections in total
+     * @param maxConnectionsPerHost the maximum number of concurrent
+     *        connections to any one host (unless overridden by
+     *        setMaxConnections())
+     * @param connectTimeoutMs how long to wait to establish a connection, or
+     *        to lease one from the pool
+     * @param readTimeoutMs how long to wait for data on an open connection
+     * @param keepAliveMs how long to keep an idle connection open, unless the
+     *        server asks for less
+     */
+    public HttpTransport(final int maxConnections, final int maxConnectionsPerHost, final int connectTimeoutMs,
+            final int readTimeoutMs, final long keepAliveMs) {
+        connectionManager = new PoolingHttpClientConnectionManager(keepAliveMs, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        defaultConfig = RequestConfig.custom().setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(connectTimeoutMs).setSocketTimeout(readTimeoutMs).build();
+        client = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(defaultConfig)
+                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        final HeaderElementIterator it = new BasicHeaderElementIterator(
+                                response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                        while (it.hasNext()) {
+                            final HeaderElement he = it.nextElement();
+                            if (he.getValue() != null && he.getName().equalsIgnoreCase("timeout")) {
+                                try {
+                                    return Math.min(keepAliveMs, Long.parseLong(he.getValue()) * 1000);
+                                } catch (NumberFormatException ex) {
+                                    // use our own limit
+                                }
+                            }
+                        }
+                        return keepAliveMs;
+                    }
+                }).addInterceptorLast(new HttpRequestInterceptor() {
+                    public void process(HttpRequest request, HttpContext context) {
+                        // SolrJ sets parameters on each of its requests, which
+                        // replaces the default request configuration with one
+                        // that has no timeouts
+                        final HttpClientContext c = HttpClientContext.adapt(context);
+                        final RequestConfig config = c.getRequestConfig();
+                        if (config != defaultConfig && (config.getSocketTimeout() <= 0
+                                || config.getConnectTimeout() <= 0 || config.getConnectionRequestTimeout() <= 0)) {
+                            c.setRequestConfig(RequestConfig.copy(config)
+                                    .setSocketTimeout(config.getSocketTimeout() > 0
+                                            ? config.getSocketTimeout() : defaultConfig.getSocketTimeout())
+                                    .setConnectTimeout(config.getConnectTimeout() > 0
+                                            ? config.getConnectTimeout() : defaultConfig.getConnectTimeout())
+                                    .setConnectionRequestTimeout(config.getConnectionRequestTimeout() > 0
+                                            ? config.getConnectionRequestTimeout()
+                                            : defaultConfig.getConnectionRequestTimeout())
+                                    .build());
+                        }
+                    }
+                }).build();
+    }
+
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Sets the maximum number of concurrent connections to the host of the
+     * given URL.
+     */
+    public void setMaxConnections(final String url, final int max) {
+        connectionManager.setMaxPerRoute(getRoute(url), max);
+    }
+
+    /**
+     * Gets the connection pool statistics for the host of the given URL.
+     */
+    public PoolStats getStats(final String url) {
+        return connectionManager.getStats(getRoute(url));
+    }
+
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Gets a summary of the connection pool usage for each of the given
+     * URLs' hosts and in total.
+     */
+    public String getStatistics(final String ... urls) {
+        final Map<String, PoolStats> stats = new HashMap<String, PoolStats>();
+        final StringBuffer sb = new StringBuffer();
+        for (String url : urls) {
+            final String host = getRoute(url).getTargetHost().toHostString();
+            if (!stats.containsKey(host)) {
+                stats.put(host, getStats(url));
+                sb.append(host).append(' ').append(stats.get(host)).append(", ");
+            }
+        }
+        sb.append("total ").append(getTotalStats());
+        return sb.toString();
+    }
+
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Gets the (direct) route by which connections to the host of the given
+     * URL are pooled.
+     */
+    private static HttpRoute getRoute(final String url) {
+        final URI uri = URI.create(url);
+        final boolean secure = "https".equals(uri.getScheme());
+        // pooled routes always have an explicit port
+        final int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+        return new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+    }
+}
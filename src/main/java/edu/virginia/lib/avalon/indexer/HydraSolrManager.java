@@ -1,77 +1,392 @@
 package edu.virginia.lib.avalon.indexer;
 
+import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
 import java.text.DateFormat;
-import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 public class HydraSolrManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HydraSolrManager.class);
 
+    /**
+     * The stored fields read by AvalonRecord; no others are requested from
+     * solr.
+     */
+    static final String FIELD_LIST = "id,identifier_ssim,avalon_publisher_ssi,hidden_bsi,has_thumbnail?_bs,"
+            + "avalon_resource_type_ssim,name_ssi,title_tesim,unit_ssi,duration_ssi,display_aspect_ratio_ssi,"
+            + "section_id_ssim,isMemberOfCollection_ssim,system_modified_dtsi";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * The default page size for getAllMediaObjectIds(), whose results are
+     * small enough that a few thousand fit comfortably in one response.
+     */
+    public static final int DEFAULT_ID_PAGE_SIZE = 5000;
+
+    /**
+     * The maximum number of ids combined into a single query by
+     * getRecordsByIds(), kept well below solr's default maxBooleanClauses.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private SolrServer solr;
 
+    private int pageSize;
+
+    private int idPageSize = DEFAULT_ID_PAGE_SIZE;
+
+    private Upstream upstream;
+
     public HydraSolrManager(String solrBaseUrl) {
-        solr = new HttpSolrServer(solrBaseUrl);
+        this(solrBaseUrl, DEFAULT_PAGE_SIZE);
     }
 
-    public List<AvalonRecord> getPidsUpdatedSince(Date date) throws SolrServerException {
+    public HydraSolrManager(String solrBaseUrl, int pageSize) {
+        this(new HttpSolrServer(solrBaseUrl), pageSize);
+    }
+
+    /**
+     * Creates a HydraSolrManager that makes its requests through the given
+     * (shared) HttpClient.
+     */
+    public HydraSolrManager(String solrBaseUrl, int pageSize, HttpClient client) {
+        this(new HttpSolrServer(solrBaseUrl, client), pageSize);
+    }
+
+    HydraSolrManager(SolrServer solr, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1!");
+        }
+        this.solr = solr;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the number of ids fetched per page by getAllMediaObjectIds().
+     */
+    public void setIdPageSize(int idPageSize) {
+        if (idPageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1!");
+        }
+        this.idPageSize = idPageSize;
+    }
+
+    /**
+     * Sets the Upstream through which every query is made, so that queries
+     * that fail transiently are retried.
+     */
+    public void setUpstream(Upstream upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * Returns the MediaObjects modified since the given date, inclusive (or
+     * all of them if the date is null), in order of their modification date.
+     * The results are fetched from solr a page at a time as they are
+     * iterated, so only one page is ever held in memory.
+     */
+    public Iterable<AvalonRecord> getPidsUpdatedSince(Date date) {
         String query = "+has_model_ssim:\"MediaObject\"";
         if (date != null) {
             query += " +system_modified_dtsi:[" + toISO8601DateString(date) + " TO NOW]";
         }
         LOGGER.debug("Searching solr: " + query);
-        return getResultingIds(query);
+        return streamResults(query, FIELD_LIST, "system_modified_dtsi asc,id asc");
+    }
+
+    /**
+     * Returns the collections and master files modified since the given
+     * date, inclusive, in order of their modification date.  Only their
+     * ids, old ids and modification dates are requested.
+     */
+    public Iterable<AvalonRecord> getDependenciesUpdatedSince(Date date) {
+        final String query = "+has_model_ssim:(\"Admin::Collection\" OR \"MasterFile\") +system_modified_dtsi:["
+                + toISO8601DateString(date) + " TO NOW]";
+        LOGGER.debug("Searching solr: " + query);
+        return streamResults(query, "id,identifier_ssim,system_modified_dtsi", "system_modified_dtsi asc,id asc");
+    }
+
+    /**
+     * Finds the MediaObjects that belong to any of the given collections or
+     * have any of the given master files as sections (so would have
+     * different add documents if one of those changed), using as few
+     * queries as possible (one per MAX_IDS_PER_QUERY ids).
+     * @return a Map from id to record, in no particular order
+     */
+    public Map<String, AvalonRecord> getDependentMediaObjects(List<String> ids) throws SolrServerException {
+        final Map<String, AvalonRecord> results = new LinkedHashMap<String, AvalonRecord>();
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY / 2) {
+            final StringBuffer values = new StringBuffer();
+            for (String id : ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY / 2))) {
+                values.append(values.length() == 0 ? "(" : " OR ");
+                values.append("\"" + id + "\"");
+            }
+            values.append(")");
+            final String query = "+has_model_ssim:\"MediaObject\" +(isMemberOfCollection_ssim:" + values
+                    + " OR section_id_ssim:" + values + ")";
+            try {
+                for (AvalonRecord record : streamResults(query)) {
+                    results.put(record.getId(), record);
+                }
+            } catch (SolrQueryException ex) {
+                throw ex.getCause();
+            }
+        }
+        return results;
     }
 
     /**
      * Executes the provided query against the configured Solr server and
      * returns a List of AvalonRecord objects containing minimal information
-     * about each record.
+     * about each record.  Because the entire result set is held in memory,
+     * this should only be used for queries with few results; use
+     * streamResults() otherwise.
      * @param query a solr query
      */
     public List<AvalonRecord> getResultingIds(String query) throws SolrServerException {
-        ModifiableSolrParams params = new ModifiableSolrParams();
-        params.add("q", query);
-        // TODO: improve efficiency with the next line
-        // params.add("fl", "id is_member_of_collection_ssim");
-        params.add("start", "0");
-        params.add("rows", "100");
-        QueryResponse r = solr.query(params);
-        LOGGER.debug(r.getResults().getNumFound() + " results found.");
         ArrayList<AvalonRecord> results = new ArrayList<AvalonRecord>();
-        while (parseResultPage(r, results)) {
-            params.set("start", String.valueOf(results.size()));
-            LOGGER.trace("Fetching 100 records starting at " + results.size() + "...");
-            r = solr.query(params);
+        try {
+            for (AvalonRecord record : streamResults(query)) {
+                results.add(record);
+            }
+        } catch (SolrQueryException ex) {
+            throw ex.getCause();
         }
         return results;
     }
 
-    private boolean parseResultPage(QueryResponse response, List<AvalonRecord> results) {
-        if (response.getResults().isEmpty()) {
-            return false;
-        } else {
-            for (SolrDocument doc : response.getResults()) {
-                AvalonRecord record = new AvalonRecord(doc);
-                results.add(record);
-                LOGGER.debug("Added " + record + ".");
+    /**
+     * Fetches the records with the given ids using as few queries as
+     * possible (one per MAX_IDS_PER_QUERY ids).
+     * @return a Map from id to record, in the order the ids were given, that
+     *         omits any id for which no record was found
+     */
+    public Map<String, AvalonRecord> getRecordsByIds(List<String> ids) throws SolrServerException {
+        final Map<String, AvalonRecord> found = new HashMap<String, AvalonRecord>();
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            final StringBuffer query = new StringBuffer();
+            for (String id : ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY))) {
+                query.append(query.length() == 0 ? "id:(" : " OR ");
+                query.append("\"" + id + "\"");
+            }
+            query.append(")");
+            for (AvalonRecord record : getResultingIds(query.toString())) {
+                found.put(record.getId(), record);
+            }
+        }
+        final Map<String, AvalonRecord> results = new LinkedHashMap<String, AvalonRecord>();
+        for (String id : ids) {
+            if (found.containsKey(id)) {
+                results.put(id, found.get(id));
             }
-            return results.size() <= response.getResults().getNumFound();
+        }
+        return results;
+    }
+
+    /**
+     * Gets the id and old id (if any) of every MediaObject in solr.  Only
+     * those two fields are requested, a page at a time, so even a large
+     * repository requires only a handful of queries.
+     */
+    public Set<String> getAllMediaObjectIds() throws SolrServerException {
+        final Set<String> ids = new HashSet<String>();
+        try {
+            for (AvalonRecord record : streamResults("+has_model_ssim:\"MediaObject\"", "id,identifier_ssim", "id asc",
+                    idPageSize)) {
+                ids.add(record.getId());
+                if (record.getOldId() != null) {
+                    ids.add(record.getOldId());
+                }
+            }
+        } catch (SolrQueryException ex) {
+            throw ex.getCause();
+        }
+        LOGGER.debug(ids.size() + " MediaObject ids found.");
+        return ids;
+    }
+
+    /**
+     * Returns an Iterable over the results of the provided query.  Each
+     * Iterator pages through the results using a solr cursor (so the cost
+     * of fetching a page doesn't grow with its depth in the result set) and
+     * holds only the current page in memory.  A failure to fetch a page is
+     * thrown from the Iterator as a SolrQueryException.
+     * @param query a solr query
+     */
+    public Iterable<AvalonRecord> streamResults(final String query) {
+        return streamResults(query, FIELD_LIST);
+    }
+
+    /**
+     * Returns an Iterable over the results of the provided query, like
+     * streamResults(String), but requests only the given fields so any other
+     * values in the resulting records will be missing.
+     */
+    public Iterable<AvalonRecord> streamResults(final String query, final String fieldList) {
+        return streamResults(query, fieldList, "id asc");
+    }
+
+    /**
+     * Returns an Iterable over the results of the provided query, like
+     * streamResults(String, String), but in the given order.  Because the
+     * results are paged with a cursor, the sort must end with the unique
+     * key ("id").
+     */
+    public Iterable<AvalonRecord> streamResults(final String query, final String fieldList, final String sort) {
+        return streamResults(query, fieldList, sort, pageSize);
+    }
+
+    /**
+     * Returns an Iterable over the results of the provided query, like
+     * streamResults(String, String, String), but fetching the given number
+     * of results per page.
+     */
+    public Iterable<AvalonRecord> streamResults(final String query, final String fieldList, final String sort,
+            final int rows) {
+        return new Iterable<AvalonRecord>() {
+            public Iterator<AvalonRecord> iterator() {
+                return new CursorIterator(query, fieldList, sort, rows);
+            }
+        };
+    }
+
+    /**
+     * Adds a record to the list for each document in the response.
+     * @return the number of records added
+     */
+    int parseResultPage(QueryResponse response, List<AvalonRecord> results) {
+        for (SolrDocument doc : response.getResults()) {
+            AvalonRecord record = new AvalonRecord(doc);
+            results.add(record);
+            LOGGER.debug("Added " + record + ".");
+        }
+        return response.getResults().size();
+    }
+
+    private QueryResponse query(final SolrParams params) throws SolrServerException {
+        if (upstream == null) {
+            return solr.query(params);
+        }
+        try {
+            return upstream.call(new Callable<QueryResponse>() {
+                public QueryResponse call() throws Exception {
+                    return solr.query(params);
+                }
+            });
+        } catch (SolrServerException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new SolrServerException(ex);
+        }
+    }
+
+    private class CursorIterator implements Iterator<AvalonRecord> {
+
+        private final ModifiableSolrParams params;
+
+        private String cursorMark = "*";
+
+        private Iterator<AvalonRecord> page = Collections.<AvalonRecord>emptyList().iterator();
+
+        private boolean exhausted = false;
+
+        private final int rows;
+
+        private CursorIterator(String query, String fieldList, String sort, int rows) {
+            this.rows = rows;
+            params = new ModifiableSolrParams();
+            params.add("q", query);
+            params.add("fl", fieldList);
+            params.add("sort", sort);
+            params.add("rows", String.valueOf(rows));
+        }
+
+        public boolean hasNext() {
+            while (!page.hasNext() && !exhausted) {
+                fetchNextPage();
+            }
+            return page.hasNext();
+        }
+
+        public AvalonRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchNextPage() {
+            params.set("cursorMark", cursorMark);
+            LOGGER.trace("Fetching " + rows + " records at cursor " + cursorMark + "...");
+            final QueryResponse r;
+            try {
+                r = query(params);
+            } catch (SolrServerException ex) {
+                throw new SolrQueryException(ex);
+            }
+            if ("*".equals(cursorMark)) {
+                LOGGER.debug(r.getResults().getNumFound() + " results found.");
+            }
+            final ArrayList<AvalonRecord> records = new ArrayList<AvalonRecord>(rows);
+            final int count = parseResultPage(r, records);
+            final String nextCursorMark = (String) r.getResponse().get("nextCursorMark");
+            if (nextCursorMark == null) {
+                throw new IllegalStateException("Solr did not return a cursor; cursorMark requires Solr 4.7 or later.");
+            }
+            exhausted = count == 0 || nextCursorMark.equals(cursorMark);
+            cursorMark = nextCursorMark;
+            page = records.iterator();
+        }
+    }
+
+    /**
+     * Thrown from the Iterators returned by streamResults() when a page of
+     * results can't be fetched.
+     */
+    public static class SolrQueryException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private SolrQueryException(SolrServerException cause) {
+            super(cause);
+        }
+
+        public SolrServerException getCause() {
+            return (SolrServerException) super.getCause();
         }
     }
 
@@ -88,137 +403,247 @@ public class HydraSolrManager {
      * a java Date object.
      */
     public static Date parseISO8601Date(String fedoraDateStr) throws ParseException {
-        return ISO8601_DATE_FORMAT.parse(fedoraDateStr);
+        synchronized (ISO8601_DATE_FORMAT) {
+            return ISO8601_DATE_FORMAT.parse(fedoraDateStr);
+        }
     }
 
     /**
      * Converts a java Date object into a n ISO8601 date String.
      */
     public static String toISO8601DateString(Date date) {
-        return ISO8601_DATE_FORMAT.format(date);
+        synchronized (ISO8601_DATE_FORMAT) {
+            return ISO8601_DATE_FORMAT.format(date);
+        }
     }
 
-    public static class AvalonRecord {
+    /**
+     * The handful of values the indexer needs from a solr document, extracted
+     * once when the document is parsed.  The document itself is not
+     * retained.
+     */
+    public static class AvalonRecord implements Serializable {
+
+        private static final long serialVersionUID = 3L;
+
+        private final String id;
+
+        private final String oldId;
+
+        private final String collectionId;
+
+        private final String name;
+
+        private final String title;
+
+        private final String unit;
+
+        private final String aspectRatio;
+
+        /**
+         * The duration in milliseconds, or -1 if the document had none.
+         */
+        private final long duration;
+
+        private final boolean published;
+
+        private final boolean hidden;
+
+        private final boolean thumbnail;
+
+        private final boolean movingImage;
+
+        private final boolean audioRecording;
+
+        private final String[] sectionIds;
+
+        /**
+         * The system_modified_dtsi value in milliseconds since the epoch, or
+         * -1 if the document had none.
+         */
+        private final long modified;
+
+        AvalonRecord(SolrDocument doc) {
+            id = (String) doc.getFieldValue("id");
+            oldId = (String) doc.getFirstValue("identifier_ssim");
+            collectionId = (String) doc.getFirstValue("isMemberOfCollection_ssim");
+            name = (String) doc.getFirstValue("name_ssi");
+            title = (String) doc.getFirstValue("title_tesim");
+            unit = (String) doc.getFirstValue("unit_ssi");
+            aspectRatio = correctAspectRatio((String) doc.getFirstValue("display_aspect_ratio_ssi"));
+            duration = parseDuration((String) doc.getFirstValue("duration_ssi"));
+
+            Collection<Object> publishers = doc.getFieldValues("avalon_publisher_ssi");
+            published = publishers != null && !publishers.isEmpty();
+            hidden = Boolean.TRUE.equals(doc.getFirstValue("hidden_bsi"));
+            thumbnail = Boolean.TRUE.equals(doc.getFirstValue("has_thumbnail?_bs"));
+
+            boolean video = false;
+            boolean audio = false;
+            Collection<Object> types = doc.getFieldValues("avalon_resource_type_ssim");
+            if (types != null) {
+                for (Object o : types) {
+                    video |= String.valueOf(o).equalsIgnoreCase("Moving image");
+                    audio |= String.valueOf(o).equalsIgnoreCase("Sound Recording");
+                }
+            }
+            movingImage = video;
+            audioRecording = audio;
+
+            modified = parseModified(doc.getFirstValue("system_modified_dtsi"));
+
+            Collection<Object> ids = doc.getFieldValues("section_id_ssim");
+            if (ids == null) {
+                sectionIds = new String[0];
+            } else {
+                sectionIds = new String[ids.size()];
+                int i = 0;
+                for (Object sectionId : ids) {
+                    sectionIds[i ++] = (String) sectionId;
+                }
+            }
+        }
+
+        private static long parseModified(Object value) {
+            if (value instanceof Date) {
+                return ((Date) value).getTime();
+            } else if (value instanceof String) {
+                try {
+                    return parseISO8601Date((String) value).getTime();
+                } catch (ParseException ex) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
 
-        private SolrDocument doc;
+        private static long parseDuration(String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
 
-        private AvalonRecord(SolrDocument d) {
-            doc = d;
+        private static String correctAspectRatio(String aspectRatio) {
+            if (aspectRatio == null) {
+                return "";
+            }
+            if (aspectRatio.equals("2.4")) {
+                /*
+                 * A bug in avalon causes an incorrect aspect ratio to be presented for ripped
+                 * DVDs. This fixes that... no real video is 2.4
+                 */
+                return "1.779";
+            }
+            return aspectRatio;
         }
 
         public String getFilename() {
-            final String oldId = getOldId();
             if (oldId != null) {
                 return oldId.replace(':', '_') + ".xml";
             } else {
-                return getId() + ".xml";
+                return id + ".xml";
             }
         }
 
         public String getOldId() {
-            return (String) doc.getFirstValue("identifier_ssim");
+            return oldId;
         }
 
         public boolean isPublished() {
-            Collection<Object> vals = doc.getFieldValues("avalon_publisher_ssi");
-            if (vals == null || vals.isEmpty()) {
-                return false;
-            } else {
-                return true;
-            }
+            return published;
         }
 
         public boolean isHidden() {
-            return Boolean.TRUE.equals(doc.getFirstValue("hidden_bsi"));
+            return hidden;
         }
 
         public boolean hasThumbnail() {
-            return (Boolean) doc.getFirstValue("has_thumbnail?_bs");
+            return thumbnail;
         }
 
         public boolean isMovingImage() {
-            Collection<Object> vals = doc.getFieldValues("avalon_resource_type_ssim");
-            if (vals == null) {
-                return false;
-            }
-            for (Object o : vals) {
-                if (String.valueOf(o).equalsIgnoreCase("Moving image")) {
-                    return true;
-                }
-            }
-            return false;
+            return movingImage;
         }
 
         public boolean isAudioRecording() {
-            Collection<Object> vals = doc.getFieldValues("avalon_resource_type_ssim");
-            if (vals == null) {
-                return false;
-            }
-            for (Object o : vals) {
-                if (String.valueOf(o).equalsIgnoreCase("Sound Recording")) {
-                    return true;
-                }
-            }
-            return false;
+            return audioRecording;
         }
 
         public String getName() {
-            return (String) doc.getFirstValue("name_ssi");
+            return name;
         }
 
         public String getTitle() {
-            return (String) doc.getFirstValue("title_tesim");
+            return title;
         }
 
         public String getUnit() {
-            return (String) doc.getFirstValue("unit_ssi");
+            return unit;
         }
 
         public String getId() {
-            return (String) doc.getFieldValue("id");
+            return id;
+        }
+
+        /**
+         * Gets the duration in milliseconds.
+         * @throws NumberFormatException if the record has no valid duration
+         */
+        public long getDurationMillis() {
+            if (duration < 0) {
+                throw new NumberFormatException("Record " + id + " has no valid duration!");
+            }
+            return duration;
         }
 
+        /**
+         * Gets the duration formatted as [h:]mm:ss.
+         * @throws NumberFormatException if the record has no valid duration
+         */
         public String getDuration() {
-            long ms = Long.parseLong((String) doc.getFirstValue("duration_ssi"));
-            long hours = ms / 3600000;
-            long minutes = (ms / 60000) % 60;
-            long seconds = (ms / 1000) % 60;
-            DecimalFormat f = new DecimalFormat("00");
+            final long ms = getDurationMillis();
+            final long hours = ms / 3600000;
+            final long minutes = (ms / 60000) % 60;
+            final long seconds = (ms / 1000) % 60;
+            final StringBuilder sb = new StringBuilder(10);
             if (hours > 0) {
-                return String.valueOf(hours) + ":" + f.format(minutes) + ":" + f.format(seconds);
-            } else {
-                return f.format(minutes) + ":" + f.format(seconds);
+                sb.append(hours).append(':');
             }
+            appendTwoDigits(sb, minutes).append(':');
+            return appendTwoDigits(sb, seconds).toString();
         }
 
-        public String getAspectRatio() {
-            String aspectRatio = (String) doc.getFirstValue("display_aspect_ratio_ssi");
-            if (aspectRatio == null) {
-                return "";
-            }
-            if (aspectRatio.equals("2.4")) {
-                /*
-                 * A bug in avalon causes an incorrect aspect ratio to be presented for ripped
-                 * DVDs. This fixes that... no real video is 2.4
-                 */
-                aspectRatio = "1.779";
+        private static StringBuilder appendTwoDigits(StringBuilder sb, long value) {
+            if (value < 10) {
+                sb.append('0');
             }
+            return sb.append(value);
+        }
+
+        public String getAspectRatio() {
             return aspectRatio;
         }
 
         public List<String> getSectionIds() {
-            ArrayList<String> sectionIds = new ArrayList<String>();
-            Collection<Object> ids = doc.getFieldValues("section_id_ssim");
-            if (ids != null) {
-                for (Object id : ids) {
-                    sectionIds.add((String) id);
-                }
-            }
-            return sectionIds;
+            return Collections.unmodifiableList(Arrays.asList(sectionIds));
         }
 
         public String getCollectionId() {
-            return (String) doc.getFirstValue("isMemberOfCollection_ssim");
+            return collectionId;
+        }
+
+        /**
+         * Gets the time the record was last modified (system_modified_dtsi),
+         * or null if unknown.
+         */
+        public Date getModified() {
+            return modified < 0 ? null : new Date(modified);
         }
 
         public String toString() {
@@ -0,0 +1,404 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counts for a single run of the indexer: a latency histogram
+ * for each stage of processing, counters, and the slowest records.  Every
+ * method may be called concurrently.  At the end of a run the metrics may be
+ * written as JSON, and in the Prometheus text format (for the node exporter's
+ * textfile collector).
+ */
+public class IndexerMetrics {
+
+    /**
+     * The upper bounds (in milliseconds) of the histogram buckets.
+     */
+    private static final long[] BUCKETS_MS = new long[] { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000,
+            10000, 30000 };
+
+    private static final String PROMETHEUS_PREFIX = "avalon_indexer_";
+
+    private final long start = System.currentTimeMillis();
+
+    private final Map<String, StageTimer> stages = new TreeMap<String, StageTimer>();
+
+    private final Map<String, AtomicLong> counters = new TreeMap<String, AtomicLong>();
+
+    private final int slowestRecordCount;
+
+    /**
+     * The slowest records so far, fastest first (so it may be trimmed).
+     */
+    private final PriorityQueue<RecordTiming> slowestRecords;
+
+    public IndexerMetrics(final int slowestRecordCount) {
+        this.slowestRecordCount = slowestRecordCount;
+        this.slowestRecords = new PriorityQueue<RecordTiming>(Math.max(1, slowestRecordCount),
+                new Comparator<RecordTiming>() {
+                    public int compare(RecordTiming a, RecordTiming b) {
+                        return Long.compare(a.nanos, b.nanos);
+                    }
+                });
+    }
+
+    /**
+     * Records the time taken by one execution of the named stage.
+     */
+    public void record(final String stage, final long nanos) {
+        getStageTimer(stage).record(nanos);
+    }
+
+    /**
+     * Records the time taken by the named stage since the given System.nanoTime().
+     */
+    public void recordSince(final String stage, final long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the total time taken to process a record, keeping it if it's
+     * among the slowest.
+     */
+    public void recordCompleted(final String id, final long nanos) {
+        if (slowestRecordCount <= 0) {
+            return;
+        }
+        synchronized (slowestRecords) {
+            if (slowestRecords.size() < slowestRecordCount) {
+                slowestRecords.add(new RecordTiming(id, nanos));
+            } else if (slowestRecords.peek().nanos < nanos) {
+                slowestRecords.poll();
+                slowestRecords.add(new RecordTiming(id, nanos));
+            }
+        }
+    }
+
+    public void increment(final String counter) {
+        getCounter(counter).incrementAndGet();
+    }
+
+    public void setCount(final String counter, final long value) {
+        getCounter(counter).set(value);
+    }
+
+    public long getCount(final String counter) {
+        return getCounter(counter).get();
+    }
+
+    /**
+     * Wraps an Iterable so that the time spent getting each element (for
+     * instance fetching a page of solr results) is recorded against the
+     * named stage.
+     */
+    public <T> Iterable<T> timed(final String stage, final Iterable<T> iterable) {
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                final Iterator<T> it = iterable.iterator();
+                return new Iterator<T>() {
+                    public boolean hasNext() {
+                        final long start = System.nanoTime();
+                        try {
+                            return it.hasNext();
+                        } finally {
+                            recordSince(stage, start);
+                        }
+                    }
+
+                    public T next() {
+                        return it.next();
+                    }
+
+                    public void remove() {
+                        it.remove();
+                    }
+                };
+            }
+        };
+    }
+
+    private StageTimer getStageTimer(final String stage) {
+        synchronized (stages) {
+            StageTimer t = stages.get(stage);
+            if (t == null) {
+                t = new StageTimer();
+                stages.put(stage, t);
+            }
+            return t;
+        }
+    }
+
+    private AtomicLong getCounter(final String counter) {
+        synchronized (counters) {
+            AtomicLong c = counters.get(counter);
+            if (c == null) {
+                c = new AtomicLong();
+                counters.put(counter, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Gets the slowest records, slowest first.
+     */
+    public List<RecordTiming> getSlowestRecords() {
+        final List<RecordTiming> result;
+        synchronized (slowestRecords) {
+            result = new ArrayList<RecordTiming>(slowestRecords);
+        }
+        Collections.sort(result, Collections.reverseOrder(slowestRecords.comparator()));
+        return result;
+    }
+
+    /**
+     * Writes the metrics as a JSON object.
+     */
+    public void writeJson(final Writer w) throws IOException {
+        final long end = System.currentTimeMillis();
+        w.write("{\n");
+        w.write("  \"start\": \"" + HydraSolrManager.toISO8601DateString(new Date(start)) + "\",\n");
+        w.write("  \"end\": \"" + HydraSolrManager.toISO8601DateString(new Date(end)) + "\",\n");
+        w.write("  \"durationMs\": " + (end - start) + ",\n");
+        w.write("  \"counters\": {");
+        boolean first = true;
+        for (Map.Entry<String, AtomicLong> c : snapshot(counters).entrySet()) {
+            w.write((first ? "\n" : ",\n") + "    " + quote(c.getKey()) + ": " + c.getValue().get());
+            first = false;
+        }
+        w.write("\n  },\n");
+        w.write("  \"stages\": {");
+        first = true;
+        for (Map.Entry<String, StageTimer> s : snapshot(stages).entrySet()) {
+            final StageTimer t = s.getValue();
+            w.write((first ? "\n" : ",\n") + "    " + quote(s.getKey()) + ": {");
+            w.write("\"count\": " + t.count.get());
+            w.write(", \"totalMs\": " + formatMs(t.totalNanos.get()));
+            w.write(", \"meanMs\": " + formatMs(t.count.get() == 0 ? 0 : t.totalNanos.get() / t.count.get()));
+            w.write(", \"maxMs\": " + formatMs(t.maxNanos.get()));
+            w.write(", \"p50Ms\": " + t.getPercentileMs(0.50));
+            w.write(", \"p95Ms\": " + t.getPercentileMs(0.95));
+            w.write(", \"p99Ms\": " + t.getPercentileMs(0.99));
+            w.write(", \"buckets\": {");
+            for (int i = 0; i <= BUCKETS_MS.length; i ++) {
+                w.write((i == 0 ? "" : ", ") + "\"" + (i < BUCKETS_MS.length ? String.valueOf(BUCKETS_MS[i]) : "+Inf")
+                        + "\": " + t.buckets.get(i));
+            }
+            w.write("}}");
+            first = false;
+        }
+        w.write("\n  },\n");
+        w.write("  \"slowestRecords\": [");
+        first = true;
+        for (RecordTiming r : getSlowestRecords()) {
+            w.write((first ? "\n" : ",\n") + "    {\"id\": " + quote(r.id) + ", \"ms\": " + formatMs(r.nanos) + "}");
+            first = false;
+        }
+        w.write("\n  ]\n");
+        w.write("}\n");
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format.  Stage
+     * timings are histograms (in seconds) labelled by stage, and counters
+     * are gauges labelled by name, since they describe the last run rather
+     * than accumulating across runs.
+     */
+    public void writePrometheus(final Writer w) throws IOException {
+        final long end = System.currentTimeMillis();
+        w.write("# HELP " + PROMETHEUS_PREFIX + "last_run_timestamp_seconds When the last run finished.\n");
+        w.write("# TYPE " + PROMETHEUS_PREFIX + "last_run_timestamp_seconds gauge\n");
+        w.write(PROMETHEUS_PREFIX + "last_run_timestamp_seconds " + (end / 1000) + "\n");
+        w.write("# HELP " + PROMETHEUS_PREFIX + "last_run_duration_seconds How long the last run took.\n");
+        w.write("# TYPE " + PROMETHEUS_PREFIX + "last_run_duration_seconds gauge\n");
+        w.write(PROMETHEUS_PREFIX + "last_run_duration_seconds " + formatSeconds((end - start) * 1000000L) + "\n");
+        w.write("# HELP " + PROMETHEUS_PREFIX + "last_run_count Counts from the last run.\n");
+        w.write("# TYPE " + PROMETHEUS_PREFIX + "last_run_count gauge\n");
+        for (Map.Entry<String, AtomicLong> c : snapshot(counters).entrySet()) {
+            w.write(PROMETHEUS_PREFIX + "last_run_count{name=" + quote(c.getKey()) + "} " + c.getValue().get() + "\n");
+        }
+        final String stage = PROMETHEUS_PREFIX + "stage_duration_seconds";
+        w.write("# HELP " + stage + " Time spent in each stage of processing during the last run.\n");
+        w.write("# TYPE " + stage + " histogram\n");
+        for (Map.Entry<String, StageTimer> s : snapshot(stages).entrySet()) {
+            final StageTimer t = s.getValue();
+            final String label = "stage=" + quote(s.getKey());
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS_MS.length; i ++) {
+                cumulative += t.buckets.get(i);
+                w.write(stage + "_bucket{" + label + ",le=\""
+                        + (i < BUCKETS_MS.length ? formatSeconds(BUCKETS_MS[i] * 1000000L) : "+Inf") + "\"} "
+                        + cumulative + "\n");
+            }
+            w.write(stage + "_sum{" + label + "} " + formatSeconds(t.totalNanos.get()) + "\n");
+            w.write(stage + "_count{" + label + "} " + t.count.get() + "\n");
+        }
+    }
+
+    /**
+     * Writes the metrics to the given JSON and/or Prometheus files (either
+     * may be null), replacing each atomically so that a reader never sees a
+     * partial file.
+     */
+    public void writeReports(final File jsonFile, final File prometheusFile) throws IOException {
+        if (jsonFile != null) {
+            final File tempFile = new File(jsonFile.getPath() + ".tmp");
+            final Writer w = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            try {
+                writeJson(w);
+            } finally {
+                w.close();
+            }
+            Files.move(tempFile.toPath(), jsonFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (prometheusFile != null) {
+            final File tempFile = new File(prometheusFile.getPath() + ".tmp");
+            final Writer w = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            try {
+                writePrometheus(w);
+            } finally {
+                w.close();
+            }
+            Files.move(tempFile.toPath(), prometheusFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Gets a one-line summary of the time spent in each stage.
+     */
+    public String getSummary() {
+        final StringBuffer sb = new StringBuffer();
+        for (Map.Entry<String, StageTimer> s : snapshot(stages).entrySet()) {
+            final StageTimer t = s.getValue();
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(s.getKey()).append(' ').append(t.count.get()).append("x ")
+                    .append(formatMs(t.totalNanos.get())).append("ms (p95 ").append(t.getPercentileMs(0.95))
+                    .append("ms)");
+        }
+        return sb.toString();
+    }
+
+    private static <V> Map<String, V> snapshot(final Map<String, V> map) {
+        synchronized (map) {
+            return new TreeMap<String, V>(map);
+        }
+    }
+
+    private static String formatMs(final long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000000d);
+    }
+
+    private static String formatSeconds(final long nanos) {
+        return String.format(Locale.US, "%.6f", nanos / 1000000000d);
+    }
+
+    private static String quote(final String value) {
+        final StringBuffer sb = new StringBuffer(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class StageTimer {
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * The number of timings in each bucket (not cumulative); the last is
+         * for those above the largest bound.
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MS.length + 1);
+
+        private void record(final long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            int i = 0;
+            while (i < BUCKETS_MS.length && nanos > BUCKETS_MS[i] * 1000000L) {
+                i ++;
+            }
+            buckets.incrementAndGet(i);
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket containing
+         * it (or the maximum, if that's lower).
+         */
+        private String getPercentileMs(final double percentile) {
+            final long total = count.get();
+            if (total == 0) {
+                return "0";
+            }
+            final long rank = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_MS.length; i ++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= rank) {
+                    return formatMs(Math.min(BUCKETS_MS[i] * 1000000L, maxNanos.get()));
+                }
+            }
+            return formatMs(maxNanos.get());
+        }
+    }
+
+    /**
+     * The time taken to process a single record.
+     */
+    public static class RecordTiming {
+
+        private final String id;
+
+        private final long nanos;
+
+        private RecordTiming(String id, long nanos) {
+            this.id = id;
+            this.nanos = nanos;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getMillis() {
+            return nanos / 1000000;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simple staged pipeline.  Each stage has its own pool of worker threads
+ * and is fed by a bounded queue, so a slow response in one stage (for
+ * instance a fetch from fedora) only holds up the item being processed
+ * rather than every item behind it, and a fast stage can't run arbitrarily
+ * far ahead of a slow one.
+ *
+ * An item that fails in any stage is reported to the FailureHandler and
+ * dropped; the remaining items continue through the pipeline.
+ */
+public class IndexingPipeline<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexingPipeline.class);
+
+    /**
+     * A single step of processing for an item.  Implementations must be safe
+     * to invoke concurrently from the configured number of workers.
+     */
+    public interface Stage<T> {
+        void process(T item) throws Exception;
+    }
+
+    public interface FailureHandler<T> {
+        void failed(String stageName, T item, Throwable t);
+    }
+
+    private final int queueSize;
+
+    private final FailureHandler<T> failureHandler;
+
+    private final List<StageDefinition<T>> stages = new ArrayList<StageDefinition<T>>();
+
+    /**
+     * A unique marker placed on the queues to signal that no more items
+     * will follow.
+     */
+    private final Object end = new Object();
+
+    public IndexingPipeline(final int queueSize, final FailureHandler<T> failureHandler) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size must be at least 1!");
+        }
+        this.queueSize = queueSize;
+        this.failureHandler = failureHandler;
+    }
+
+    public IndexingPipeline<T> addStage(final String name, final int workers, final Stage<T> stage) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Stage \"" + name + "\" must have at least 1 worker!");
+        }
+        stages.add(new StageDefinition<T>(name, workers, stage));
+        return this;
+    }
+
+    /**
+     * Starts the worker threads for every stage and returns a Feed through
+     * which items may be supplied.  The caller must invoke Feed.finish() once
+     * all items have been supplied.
+     */
+    public Feed<T> start() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("No stages have been defined!");
+        }
+        int totalWorkers = 0;
+        for (StageDefinition<T> s : stages) {
+            totalWorkers += s.workers;
+        }
+        final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+        for (int i = 0; i < stages.size(); i ++) {
+            queues.add(new ArrayBlockingQueue<Object>(queueSize));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(totalWorkers);
+        for (int i = 0; i < stages.size(); i ++) {
+            final StageDefinition<T> stage = stages.get(i);
+            final BlockingQueue<Object> in = queues.get(i);
+            final BlockingQueue<Object> out = i + 1 < stages.size() ? queues.get(i + 1) : null;
+            final int nextWorkers = i + 1 < stages.size() ? stages.get(i + 1).workers : 0;
+            final AtomicInteger running = new AtomicInteger(stage.workers);
+            for (int w = 0; w < stage.workers; w ++) {
+                executor.execute(new Worker(stage, in, out, running, nextWorkers));
+            }
+        }
+        return new Feed<T>(queues.get(0), stages.get(0).workers, executor, end);
+    }
+
+    /**
+     * The entry point to a running pipeline.
+     */
+    public static class Feed<T> {
+
+        private final BlockingQueue<Object> queue;
+
+        private final int workers;
+
+        private final ExecutorService executor;
+
+        private final Object end;
+
+        private Feed(BlockingQueue<Object> queue, int workers, ExecutorService executor, Object end) {
+            this.queue = queue;
+            this.workers = workers;
+            this.executor = executor;
+            this.end = end;
+        }
+
+        /**
+         * Adds an item to the pipeline, blocking until there is room for it.
+         */
+        public void put(final T item) throws InterruptedException {
+            queue.put(item);
+        }
+
+        /**
+         * Signals that no more items will be supplied and waits for all of
+         * the items already supplied to make their way through the pipeline.
+         */
+        public void finish() throws InterruptedException {
+            for (int i = 0; i < workers; i ++) {
+                queue.put(end);
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.debug("Waiting for pipeline to drain...");
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final StageDefinition<T> stage;
+
+        private final BlockingQueue<Object> in;
+
+        private final BlockingQueue<Object> out;
+
+        private final AtomicInteger running;
+
+        private final int nextWorkers;
+
+        private Worker(StageDefinition<T> stage, BlockingQueue<Object> in, BlockingQueue<Object> out,
+                AtomicInteger running, int nextWorkers) {
+            this.stage = stage;
+            this.in = in;
+            this.out = out;
+            this.running = running;
+            this.nextWorkers = nextWorkers;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void run() {
+            try {
+                while (true) {
+                    final Object next = in.take();
+                    if (next == end) {
+                        break;
+                    }
+                    final T item = (T) next;
+                    boolean succeeded = false;
+                    try {
+                        stage.stage.process(item);
+                        succeeded = true;
+                    } catch (Throwable t) {
+                        failureHandler.failed(stage.name, item, t);
+                    }
+                    if (succeeded && out != null) {
+                        out.put(item);
+                    }
+                }
+                // the last worker of this stage to finish tells the next stage
+                // that no more items are coming
+                if (running.decrementAndGet() == 0 && out != null) {
+                    for (int i = 0; i < nextWorkers; i ++) {
+                        out.put(end);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Pipeline stage \"" + stage.name + "\" interrupted!");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class StageDefinition<T> {
+
+        private final String name;
+
+        private final int workers;
+
+        private final Stage<T> stage;
+
+        private StageDefinition(String name, int workers, Stage<T> stage) {
+            this.name = name;
+            this.workers = workers;
+            this.stage = stage;
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * The RecordSource that queries the hydra solr core (through a
+ * HydraSolrManager) and fetches MODS from fedora, making each request to
+ * fedora through an Upstream.
+ */
+public class LiveRecordSource implements RecordSource {
+
+    private final HydraSolrManager solr;
+
+    private final FedoraClient fedora;
+
+    private final String fedoraBaseUrl;
+
+    private final Upstream fedoraUpstream;
+
+    public LiveRecordSource(final HydraSolrManager solr, final FedoraClient fedora, final String fedoraBaseUrl,
+            final Upstream fedoraUpstream) {
+        this.solr = solr;
+        this.fedora = fedora;
+        this.fedoraBaseUrl = fedoraBaseUrl;
+        this.fedoraUpstream = fedoraUpstream;
+    }
+
+    public Iterable<HydraSolrManager.AvalonRecord> getPidsUpdatedSince(final Date date) {
+        return solr.getPidsUpdatedSince(date);
+    }
+
+    public Iterable<HydraSolrManager.AvalonRecord> getDependenciesUpdatedSince(final Date date) {
+        return solr.getDependenciesUpdatedSince(date);
+    }
+
+    public Map<String, HydraSolrManager.AvalonRecord> getDependentMediaObjects(final List<String> ids)
+            throws Exception {
+        return solr.getDependentMediaObjects(ids);
+    }
+
+    public Map<String, HydraSolrManager.AvalonRecord> getRecordsByIds(final List<String> ids) throws Exception {
+        return solr.getRecordsByIds(ids);
+    }
+
+    public HydraSolrManager.AvalonRecord getRecord(final String id) throws Exception {
+        List<HydraSolrManager.AvalonRecord> records = solr.getResultingIds("id:\"" + id + "\"");
+        if (records.size() == 1) {
+            return records.get(0);
+        }
+        records = solr.getResultingIds("identifier_ssim:\"" + id + "\"");
+        return records.size() == 1 ? records.get(0) : null;
+    }
+
+    public Set<String> getAllMediaObjectIds() throws Exception {
+        return solr.getAllMediaObjectIds();
+    }
+
+    /**
+     * Gets the MODS (the descMetadata datastream) from fedora, which is
+     * asked to respond with a 304 if the cached copy is still current.
+     */
+    public FedoraClient.Content getMods(final String id, final FedoraClient.Content cached) throws Exception {
+        return fedoraUpstream.call(new Callable<FedoraClient.Content>() {
+            public FedoraClient.Content call() throws Exception {
+                return fedora.get(getURLForId(id) + "/descMetadata", cached);
+            }
+        });
+    }
+
+    /**
+     * Streams the MODS from fedora to the reader.  If the request is retried
+     * the reader is called again with the new response.
+     */
+    public <T> T readMods(final String id, final FedoraClient.BodyReader<T> reader) throws Exception {
+        return fedoraUpstream.call(new Callable<T>() {
+            public T call() throws Exception {
+                return fedora.stream(getURLForId(id) + "/descMetadata", reader);
+            }
+        });
+    }
+
+    public boolean exists(final String id) throws Exception {
+        final String url = getURLForId(id);
+        return fedoraUpstream.call(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return fedora.exists(url);
+            }
+        });
+    }
+
+    /**
+     * Does nothing; the clients' connections belong to the shared
+     * HttpTransport.
+     */
+    public void close() {
+    }
+
+    private String getURLForId(String id) {
+        return fedoraBaseUrl + id.substring(0, 2) + "/" + id.substring(2, 4) + "/" + id.substring(4, 6) + "/"
+                + id.substring(6, 8) + "/" + id;
+    }
+}
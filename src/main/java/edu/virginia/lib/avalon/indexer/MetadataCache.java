@@ -0,0 +1,173 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, thread-safe cache of values that rarely change (such as
+ * collection records) keyed by the id used to look them up.  Entries expire
+ * after a fixed time to live and, once the cache is full, the least recently
+ * used entry is evicted to make room for a new one.  The contents may be
+ * saved to and loaded from a file so that they survive between runs.
+ */
+public class MetadataCache<V extends Serializable> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
+
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, Entry<V>> entries;
+
+    private int hits;
+
+    private int misses;
+
+    public MetadataCache(final int maxEntries, final long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1!");
+        }
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached value for the given key, or null if there is no
+     * unexpired value.
+     */
+    public synchronized V get(final String key) {
+        final Entry<V> e = entries.get(key);
+        if (e == null) {
+            misses ++;
+            return null;
+        } else if (isExpired(e, System.currentTimeMillis())) {
+            entries.remove(key);
+            misses ++;
+            return null;
+        } else {
+            hits ++;
+            return e.value;
+        }
+    }
+
+    public synchronized void put(final String key, final V value) {
+        entries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+    }
+
+    /**
+     * Discards the cached value for the given key (if any), for instance
+     * because the record it came from has changed.
+     */
+    public synchronized void remove(final String key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized String getStatistics() {
+        return entries.size() + " entries, " + hits + " hits, " + misses + " misses";
+    }
+
+    private boolean isExpired(final Entry<V> e, final long now) {
+        return now - e.created > ttlMillis;
+    }
+
+    /**
+     * Adds the unexpired entries from the given file (written by save()) to
+     * this cache.  A missing or unreadable file is logged and otherwise
+     * ignored, since the cache can always be rebuilt from solr.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void load(final File file) {
+        if (!file.exists()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        int loaded = 0;
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i ++) {
+                    final String key = (String) in.readObject();
+                    final Entry<V> e = new Entry<V>((V) in.readObject(), in.readLong());
+                    if (!isExpired(e, now)) {
+                        entries.put(key, e);
+                        loaded ++;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            LOGGER.debug("Loaded " + loaded + " cached entries from " + file + ".");
+        } catch (Exception ex) {
+            LOGGER.warn("Unable to load cache from " + file + ", it will be rebuilt.", ex);
+        }
+    }
+
+    /**
+     * Writes the unexpired entries of this cache to the given file, replacing
+     * it only once the new contents have been completely written.
+     */
+    public synchronized void save(final File file) throws IOException {
+        final long now = System.currentTimeMillis();
+        final List<Map.Entry<String, Entry<V>>> live = new ArrayList<Map.Entry<String, Entry<V>>>();
+        for (Map.Entry<String, Entry<V>> e : entries.entrySet()) {
+            if (!isExpired(e.getValue(), now)) {
+                live.add(e);
+            }
+        }
+        final File tempFile = new File(file.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(live.size());
+            for (Map.Entry<String, Entry<V>> e : live) {
+                out.writeObject(e.getKey());
+                out.writeObject(e.getValue().value);
+                out.writeLong(e.getValue().created);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Saved " + live.size() + " cached entries to " + file + ".");
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long created;
+
+        private Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe, size-limited cache on disk of MODS records (or any fedora
+ * content) along with the validators (ETag and Last-Modified) with which
+ * fedora can be asked whether each has changed.  A record whose copy is
+ * current then costs a 304 response rather than its whole body.
+ *
+ * Each record is kept in its own file (grouped in subdirectories by the
+ * first two characters of its id).  To make room for a record once the
+ * files reach the size limit, the least recently used records are deleted,
+ * but never one used during the current run: a full reindex reads every
+ * record in the same order each time, and if that order is allowed to push
+ * records out, each is evicted just before it's needed again.  When only
+ * records used during the run remain the new record isn't cached.  Use is
+ * tracked in memory and, so that it carries over to later runs, by the
+ * files' modification times.
+ */
+public class ModsCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ModsCache.class);
+
+    /**
+     * Eviction frees space down to this share of the limit, so that it
+     * isn't needed again by the very next record.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    /**
+     * The size and last use of each cached file, by id, from least to most
+     * recently used.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long totalBytes = 0;
+
+    /**
+     * The time at which the current run started; records used since then
+     * aren't evicted.
+     */
+    private long runStart = System.currentTimeMillis();
+
+    private int hits;
+
+    private int misses;
+
+    private int evictions;
+
+    private int rejections;
+
+    public ModsCache(final File directory, final long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1 byte!");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+
+        final List<File> files = new ArrayList<File>();
+        final File[] subdirectories = directory.listFiles();
+        if (subdirectories != null) {
+            for (File subdirectory : subdirectories) {
+                final File[] cached = subdirectory.listFiles();
+                if (cached != null) {
+                    for (File f : cached) {
+                        if (f.getName().endsWith(".tmp")) {
+                            f.delete();
+                        } else {
+                            files.add(f);
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File f : files) {
+            entries.put(f.getName(), new Entry(f.length(), f.lastModified()));
+            totalBytes += f.length();
+        }
+        LOGGER.debug("Found " + entries.size() + " cached records (" + totalBytes + " bytes) in " + directory + ".");
+        makeRoom(0);
+    }
+
+    /**
+     * Marks the start of a new run, after which the records used in earlier
+     * runs may be evicted.
+     */
+    public synchronized void startRun() {
+        runStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the cached copy of the record with the given id, or null if there
+     * is none.
+     */
+    public FedoraClient.Content get(final String id) {
+        final String name = getFilename(id);
+        synchronized (this) {
+            final Entry e = entries.get(name);
+            if (e == null) {
+                misses ++;
+                return null;
+            }
+            e.lastUsed = System.currentTimeMillis();
+        }
+        final File file = getFile(name);
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                final String eTag = in.readUTF();
+                final String lastModified = in.readUTF();
+                final byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                file.setLastModified(System.currentTimeMillis());
+                synchronized (this) {
+                    hits ++;
+                }
+                return new FedoraClient.Content(body, eTag.length() == 0 ? null : eTag,
+                        lastModified.length() == 0 ? null : lastModified);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            // evicted since, or damaged
+            LOGGER.debug("Unable to read cached record " + id + ".", ex);
+            synchronized (this) {
+                misses ++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Caches the given copy of the record with the given id, replacing any
+     * earlier one, if there is or can be made room for it.
+     */
+    public void put(final String id, final FedoraClient.Content content) throws IOException {
+        final String name = getFilename(id);
+        final File file = getFile(name);
+        file.getParentFile().mkdirs();
+        final File tempFile = File.createTempFile(name + "-", ".tmp", file.getParentFile());
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeUTF(content.getETag() == null ? "" : content.getETag());
+            out.writeUTF(content.getLastModified() == null ? "" : content.getLastModified());
+            out.writeInt(content.getBody().length);
+            out.write(content.getBody());
+        } finally {
+            out.close();
+        }
+        final long size = tempFile.length();
+        synchronized (this) {
+            final Entry previous = entries.remove(name);
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            if (!makeRoom(size)) {
+                tempFile.delete();
+                file.delete();
+                rejections ++;
+                return;
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            entries.put(name, new Entry(size, System.currentTimeMillis()));
+            totalBytes += size;
+        }
+    }
+
+    /**
+     * Evicts records (least recently used first, but none used during this
+     * run) until the given number of bytes can be added without exceeding
+     * the limit.  When eviction is needed at all, it continues until there
+     * is some room to spare.
+     * @return false if there isn't room for that many bytes
+     */
+    private synchronized boolean makeRoom(final long bytes) {
+        if (totalBytes + bytes <= maxBytes) {
+            return true;
+        }
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes + bytes > maxBytes * EVICTION_TARGET && it.hasNext()) {
+            final Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue().lastUsed >= runStart) {
+                break;
+            }
+            getFile(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue().size;
+            it.remove();
+            evictions ++;
+        }
+        return totalBytes + bytes <= maxBytes;
+    }
+
+    public synchronized String getStatistics() {
+        return entries.size() + " records (" + (totalBytes / 1024) + " KB), " + hits + " hits, " + misses
+                + " misses, " + evictions + " evictions, " + rejections + " not cached for lack of room";
+    }
+
+    private static String getFilename(final String id) {
+        return id.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    private File getFile(final String name) {
+        return new File(new File(directory, name.length() < 2 ? name : name.substring(0, 2)), name);
+    }
+
+    private static class Entry {
+
+        private final long size;
+
+        private long lastUsed;
+
+        private Entry(final long size, final long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
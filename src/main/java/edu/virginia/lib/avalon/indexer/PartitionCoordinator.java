@@ -0,0 +1,314 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the partitions of a reindex to workers (in one or more
+ * processes, on one or more hosts) through lease files in a directory that
+ * they all share.
+ *
+ * A worker holds a partition by holding its lease, which expires unless it
+ * is renewed.  Leases have generations: partition-03.lease.1 is the first
+ * lease on partition 3, and a worker that finds the latest lease expired
+ * takes the partition over by creating the next generation.  Lease files
+ * are created as hard links to a complete temporary file, which is atomic
+ * and fails if the file exists (even on NFS), so exactly one worker wins
+ * each generation.  A worker that finds a later generation than its own
+ * has lost the partition and must stop working on it.  Once a partition has
+ * been reindexed its holder writes partition-03.done (a summary) and
+ * removes the leases.
+ *
+ * Expiry is decided by comparing the time written in a lease with the
+ * local clock, so the clocks of the hosts must be synchronized to well
+ * within the lease duration.
+ */
+public class PartitionCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionCoordinator.class);
+
+    private final File directory;
+
+    private final int partitions;
+
+    private final String owner;
+
+    private final long leaseMs;
+
+    public PartitionCoordinator(final File directory, final int partitions, final String owner, final long leaseMs)
+            throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("There must be at least one partition!");
+        }
+        this.directory = directory;
+        this.partitions = partitions;
+        this.owner = owner;
+        this.leaseMs = leaseMs;
+        directory.mkdirs();
+
+        // every worker must split the records the same way
+        final File countFile = new File(directory, "partitions.txt");
+        if (!countFile.exists()) {
+            final File tempFile = writeTemporaryFile(String.valueOf(partitions));
+            try {
+                Files.createLink(countFile.toPath(), tempFile.toPath());
+            } catch (FileAlreadyExistsException ex) {
+                // another worker created it first
+            } finally {
+                tempFile.delete();
+            }
+        }
+        final int existing = Integer.parseInt(read(countFile).trim());
+        if (existing != partitions) {
+            throw new RuntimeException(directory + " holds a reindex split into " + existing + " partitions, not "
+                    + partitions + "!");
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions;
+    }
+
+    /**
+     * Gets the directory in which the output of a partition is kept.  It
+     * belongs to whoever holds the partition's lease, and is picked up by
+     * the next holder if the lease is lost.
+     */
+    public File getPartitionDirectory(final int partition) {
+        return new File(directory, "partition-" + format(partition));
+    }
+
+    /**
+     * Claims an incomplete partition that isn't leased (or whose lease has
+     * expired), starting the search at a point derived from the owner's name
+     * so that workers starting together don't all contend for partition 0.
+     * @return the lease, or null if every incomplete partition is leased
+     */
+    public Lease claim() throws IOException {
+        final int first = (owner.hashCode() & 0x7fffffff) % partitions;
+        for (int i = 0; i < partitions; i ++) {
+            final int partition = (first + i) % partitions;
+            if (isComplete(partition)) {
+                continue;
+            }
+            final int generation = getLatestGeneration(partition);
+            if (generation > 0) {
+                final Properties current = readLease(partition, generation);
+                if (current != null && Long.parseLong(current.getProperty("expires")) > System.currentTimeMillis()) {
+                    continue;
+                }
+                LOGGER.info("The lease of " + (current == null ? "an unknown worker" : current.getProperty("owner"))
+                        + " on partition " + partition + " has expired.");
+            }
+            final Lease lease = new Lease(partition, generation + 1);
+            final File tempFile = writeTemporaryFile(lease.toProperties());
+            try {
+                Files.createLink(lease.getFile().toPath(), tempFile.toPath());
+                LOGGER.info(owner + " claimed partition " + partition + " (lease " + lease.generation + ").");
+                return lease;
+            } catch (FileAlreadyExistsException ex) {
+                LOGGER.debug("Another worker claimed partition " + partition + " first.");
+            } finally {
+                tempFile.delete();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the lease is still the latest for its partition and
+     * still names this owner (even if it has expired, no other worker has
+     * taken the partition over).
+     */
+    public boolean isHeld(final Lease lease) throws IOException {
+        if (getLatestGeneration(lease.partition) != lease.generation) {
+            return false;
+        }
+        final Properties current = readLease(lease.partition, lease.generation);
+        return current != null && owner.equals(current.getProperty("owner"));
+    }
+
+    /**
+     * Extends the lease by the lease duration from now.
+     * @return false if the lease has been lost (and wasn't renewed)
+     */
+    public boolean renew(final Lease lease) throws IOException {
+        if (!isHeld(lease)) {
+            return false;
+        }
+        lease.expires = System.currentTimeMillis() + leaseMs;
+        final File tempFile = writeTemporaryFile(lease.toProperties());
+        Files.move(tempFile.toPath(), lease.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // another worker may have taken over between the check and the write
+        return isHeld(lease);
+    }
+
+    /**
+     * Marks the leased partition as complete, recording the given summary,
+     * and removes its leases.
+     * @return false if the lease had been lost, in which case nothing is
+     *         recorded
+     */
+    public boolean complete(final Lease lease, final Properties summary) throws IOException {
+        if (!isHeld(lease)) {
+            return false;
+        }
+        final Properties p = new Properties();
+        p.putAll(summary);
+        p.setProperty("owner", owner);
+        p.setProperty("lease", String.valueOf(lease.generation));
+        final File tempFile = writeTemporaryFile(toString(p));
+        Files.move(tempFile.toPath(), getDoneFile(lease.partition).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        for (int generation = 1; generation <= lease.generation; generation ++) {
+            new Lease(lease.partition, generation).getFile().delete();
+        }
+        LOGGER.info(owner + " completed partition " + lease.partition + ".");
+        return true;
+    }
+
+    public boolean isComplete(final int partition) {
+        return getDoneFile(partition).exists();
+    }
+
+    public boolean isComplete() {
+        for (int i = 0; i < partitions; i ++) {
+            if (!isComplete(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the summary recorded when the partition was completed.
+     */
+    public Properties getSummary(final int partition) throws IOException {
+        final Properties p = new Properties();
+        final InputStream is = new FileInputStream(getDoneFile(partition));
+        try {
+            p.load(is);
+        } finally {
+            is.close();
+        }
+        return p;
+    }
+
+    private File getDoneFile(final int partition) {
+        return new File(directory, "partition-" + format(partition) + ".done");
+    }
+
+    private int getLatestGeneration(final int partition) {
+        final String prefix = "partition-" + format(partition) + ".lease.";
+        int latest = 0;
+        final String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        latest = Math.max(latest, Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException ex) {
+                        // not a lease
+                    }
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Reads a lease, or returns null if it no longer exists.
+     */
+    private Properties readLease(final int partition, final int generation) throws IOException {
+        final File file = new Lease(partition, generation).getFile();
+        final Properties p = new Properties();
+        try {
+            final InputStream is = new FileInputStream(file);
+            try {
+                p.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException ex) {
+            if (!file.exists()) {
+                return null;
+            }
+            throw ex;
+        }
+        return p;
+    }
+
+    private String format(final int partition) {
+        return String.format("%0" + String.valueOf(partitions - 1).length() + "d", partition);
+    }
+
+    private File writeTemporaryFile(final String content) throws IOException {
+        final File tempFile = File.createTempFile("." + owner.replaceAll("[^A-Za-z0-9_.-]", "_") + "-", ".tmp",
+                directory);
+        final OutputStream os = new FileOutputStream(tempFile);
+        try {
+            IOUtils.write(content, os, "UTF-8");
+        } finally {
+            os.close();
+        }
+        return tempFile;
+    }
+
+    private static String read(final File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String toString(final Properties p) {
+        final StringBuffer sb = new StringBuffer();
+        for (String name : p.stringPropertyNames()) {
+            sb.append(name).append('=').append(p.getProperty(name)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A worker's claim on a partition.
+     */
+    public class Lease {
+
+        private final int partition;
+
+        private final int generation;
+
+        private long expires = System.currentTimeMillis() + leaseMs;
+
+        private Lease(final int partition, final int generation) {
+            this.partition = partition;
+            this.generation = generation;
+        }
+
+        public int getPartition() {
+            return partition;
+        }
+
+        private File getFile() {
+            return new File(directory, "partition-" + format(partition) + ".lease." + generation);
+        }
+
+        private String toProperties() {
+            return "owner=" + owner + "\nexpires=" + expires + "\n";
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs a full reindex split across any number of worker processes
+ * (possibly on several hosts sharing a filesystem), followed by a merge.
+ *
+ * The records are split into partition-count partitions by a hash of their
+ * ids.  Each worker repeatedly claims a partition through a
+ * PartitionCoordinator in the shared partition-directory and indexes the
+ * records in it into that partition's own add doc repository, index,
+ * last-run file and dead-letter list, renewing its lease as it goes.  A
+ * worker that dies loses its lease, and whoever claims the partition next
+ * resumes from its last checkpoint.  Once every partition is complete, the
+ * merge copies the partitions' add docs into the configured
+ * add-doc-repository, combines their dead-letter lists, shadows deleted
+ * records and saves a last-run date that is safe for every partition, so
+ * that the next ordinary run continues incrementally.
+ *
+ * Usage: PartitionedReindex config.properties work [worker-name]
+ *        PartitionedReindex config.properties merge
+ */
+public class PartitionedReindex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedReindex.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[1].equals("work") || args[1].equals("merge"))) {
+            System.err.println("Usage: PartitionedReindex config.properties work [worker-name]");
+            System.err.println("       PartitionedReindex config.properties merge");
+            System.exit(-1);
+        }
+        final Properties p = new Properties();
+        final FileInputStream fis = new FileInputStream(args[0]);
+        try {
+            p.load(fis);
+        } finally {
+            fis.close();
+        }
+        if (args[1].equals("work")) {
+            final String worker = args.length > 2 ? args[2] : ManagementFactory.getRuntimeMXBean().getName();
+            final int errors = new PartitionedReindex(p, worker).work();
+            System.exit(errors > 0 ? 1 : 0);
+        } else {
+            // like an ordinary run, the merge updates the add doc repository
+            final FileLock lock = new RandomAccessFile(new File(args[0]), "rw").getChannel().tryLock();
+            if (lock == null) {
+                System.err.println("Another instance of this program is currently running the configuration " + args[0] + ".");
+                System.exit(-2);
+            }
+            try {
+                final Properties summary = new PartitionedReindex(p, "merge").merge();
+                System.out.println(summary.getProperty("indexed") + " index records created/updated ("
+                        + summary.getProperty("unchanged") + " regenerated but unchanged) by "
+                        + summary.getProperty("partitions") + " partitions, " + summary.getProperty("errors")
+                        + " errors; " + summary.getProperty("merged") + " add docs merged.");
+                System.exit(Integer.parseInt(summary.getProperty("errors")) > 0 ? 1 : 0);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private final Properties configuration;
+
+    private final PartitionCoordinator coordinator;
+
+    private final long leaseMs;
+
+    public PartitionedReindex(final Properties configuration, final String worker) throws IOException {
+        this.configuration = configuration;
+        final String directory = configuration.getProperty("partition-directory", "").trim();
+        if (directory.length() == 0) {
+            throw new RuntimeException("Required property \"partition-directory\" not specified!");
+        }
+        this.leaseMs = Integer.parseInt(configuration.getProperty("partition-lease-seconds", "300").trim()) * 1000L;
+        this.coordinator = new PartitionCoordinator(new File(directory),
+                Integer.parseInt(configuration.getProperty("partition-count", "16").trim()), worker, leaseMs);
+    }
+
+    /**
+     * Claims and reindexes partitions until every partition is complete,
+     * waiting for those leased by other workers in case they're abandoned.
+     * @return the number of errors in the partitions this worker completed
+     */
+    public int work() throws Exception {
+        int errors = 0;
+        while (true) {
+            final PartitionCoordinator.Lease lease = coordinator.claim();
+            if (lease != null) {
+                errors += reindex(lease);
+            } else if (coordinator.isComplete()) {
+                return errors;
+            } else {
+                Thread.sleep(leaseMs / 3);
+            }
+        }
+    }
+
+    /**
+     * Gets the configuration for an indexer that works on the given
+     * partition: the same as the base configuration, but with its output
+     * and state kept in the partition's directory.
+     */
+    Properties getPartitionConfiguration(final int partition) {
+        final File dir = coordinator.getPartitionDirectory(partition);
+        final Properties p = new Properties();
+        p.putAll(configuration);
+        final File repository = new File(dir, "add-docs");
+        repository.mkdirs();
+        p.setProperty("add-doc-repository", repository.getPath());
+        p.setProperty("add-doc-store", "directory");
+        p.setProperty("add-doc-index-file", new File(dir, "add-doc-index.txt").getPath());
+        p.setProperty("last-run-file", new File(dir, "last-run.txt").getPath());
+        if (!configuration.containsKey("dead-letter-file")
+                || configuration.getProperty("dead-letter-file").trim().length() > 0) {
+            p.setProperty("dead-letter-file", new File(dir, "dead-letters.txt").getPath());
+        }
+        if (configuration.getProperty("metrics-json-file", "").trim().length() > 0) {
+            p.setProperty("metrics-json-file", new File(dir, "metrics.json").getPath());
+        }
+        if (configuration.getProperty("metrics-prometheus-file", "").trim().length() > 0) {
+            p.setProperty("metrics-prometheus-file", new File(dir, "metrics.prom").getPath());
+        }
+        p.setProperty("metadata-cache-file", "");
+        p.setProperty("poll-interval-seconds", "0");
+        return p;
+    }
+
+    /**
+     * Reindexes the records in the leased partition, renewing the lease
+     * every third of its duration, and marks the partition complete.  If
+     * the lease is lost the indexer is stopped and the partition left to
+     * whoever took it over.
+     * @return the number of errors
+     */
+    private int reindex(final PartitionCoordinator.Lease lease) throws Exception {
+        final long start = System.currentTimeMillis();
+        final AvalonIndexer indexer = new AvalonIndexer(getPartitionConfiguration(lease.getPartition()));
+        indexer.setPartition(lease.getPartition(), coordinator.getPartitionCount());
+        final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if (!coordinator.renew(lease)) {
+                        LOGGER.warn("Lost the lease on partition " + lease.getPartition() + ", stopping.");
+                        indexer.abandonSynchronization();
+                    }
+                } catch (IOException ex) {
+                    // the lease may still be renewed in time
+                    LOGGER.warn("Unable to renew the lease on partition " + lease.getPartition() + ".", ex);
+                }
+            }
+        }, leaseMs / 3, leaseMs / 3, TimeUnit.MILLISECONDS);
+        try {
+            indexer.synchronizeAddDocRepository();
+        } finally {
+            heartbeat.shutdownNow();
+            indexer.close();
+        }
+        indexer.writeMetricsReports();
+        if (indexer.isAbandoned()) {
+            return 0;
+        }
+        final Properties summary = new Properties();
+        summary.setProperty("indexed", String.valueOf(indexer.getIndexRecordCount()));
+        summary.setProperty("unchanged", String.valueOf(indexer.getUnchangedRecordCount()));
+        summary.setProperty("errors", String.valueOf(indexer.getErrorCount()));
+        summary.setProperty("elapsed-ms", String.valueOf(System.currentTimeMillis() - start));
+        final Date lastRun = indexer.getLastRunDate();
+        if (lastRun != null) {
+            summary.setProperty("last-run", String.valueOf(lastRun.getTime()));
+        }
+        if (!coordinator.complete(lease, summary)) {
+            LOGGER.warn("Lost the lease on partition " + lease.getPartition() + " before completing it.");
+            return 0;
+        }
+        return indexer.getErrorCount();
+    }
+
+    /**
+     * Merges the output of every partition into the add doc repository (and
+     * dead-letter list) of the base configuration, shadows records that
+     * have been deleted, and saves the last-run date.
+     * @return the totals of the partitions' summaries, along with the
+     *         number of partitions and of add docs merged; these are also
+     *         written to merge-summary.properties in the partition directory
+     */
+    public Properties merge() throws Exception {
+        if (!coordinator.isComplete()) {
+            throw new IllegalStateException("Not every partition has been reindexed!");
+        }
+        final AvalonIndexer indexer = new AvalonIndexer(configuration);
+        long indexed = 0;
+        long unchanged = 0;
+        long errors = 0;
+        long elapsedMs = 0;
+        int merged = 0;
+        Date lastRun = null;
+        boolean lastRunKnown = true;
+        for (int partition = 0; partition < coordinator.getPartitionCount(); partition ++) {
+            final Properties summary = coordinator.getSummary(partition);
+            indexed += Long.parseLong(summary.getProperty("indexed"));
+            unchanged += Long.parseLong(summary.getProperty("unchanged"));
+            errors += Long.parseLong(summary.getProperty("errors"));
+            elapsedMs += Long.parseLong(summary.getProperty("elapsed-ms"));
+
+            // every record of a partition modified up to its last-run date
+            // is done, so the earliest of them is safe for all of them; a
+            // partition with no records doesn't constrain it, unless it
+            // had no records because the first of them failed
+            if (summary.getProperty("last-run") != null) {
+                final Date d = new Date(Long.parseLong(summary.getProperty("last-run")));
+                if (lastRun == null || d.before(lastRun)) {
+                    lastRun = d;
+                }
+            } else if (Long.parseLong(summary.getProperty("errors")) > 0 && !indexer.hasDeadLetterList()) {
+                lastRunKnown = false;
+            }
+
+            final File dir = coordinator.getPartitionDirectory(partition);
+            final DirectoryAddDocStore source = new DirectoryAddDocStore(new File(dir, "add-docs"));
+            try {
+                merged += indexer.importAddDocs(source, new AddDocIndex(new File(dir, "add-doc-index.txt")));
+            } finally {
+                source.close();
+            }
+            final File deadLetters = new File(dir, "dead-letters.txt");
+            if (deadLetters.exists()) {
+                indexer.importDeadLetters(new DeadLetterList(deadLetters));
+            }
+            LOGGER.debug("Merged partition " + partition + ".");
+        }
+        indexer.shadowAnyDeletedRecords();
+        indexer.close();
+        if (lastRunKnown && lastRun != null) {
+            indexer.saveLastRunDate(lastRun);
+        } else {
+            LOGGER.warn("A partition failed before completing any record, so the last-run date is unchanged.");
+        }
+        errors += indexer.getErrorCount();
+
+        final Properties summary = new Properties();
+        summary.setProperty("partitions", String.valueOf(coordinator.getPartitionCount()));
+        summary.setProperty("indexed", String.valueOf(indexed));
+        summary.setProperty("unchanged", String.valueOf(unchanged));
+        summary.setProperty("errors", String.valueOf(errors));
+        summary.setProperty("merged", String.valueOf(merged));
+        summary.setProperty("partition-elapsed-ms", String.valueOf(elapsedMs));
+        if (lastRunKnown && lastRun != null) {
+            summary.setProperty("last-run", HydraSolrManager.toISO8601DateString(lastRun));
+        }
+        final OutputStream os = new FileOutputStream(new File(coordinator.getPartitionDirectory(0).getParentFile(),
+                "merge-summary.properties"));
+        try {
+            summary.store(os, "Partitioned reindex");
+        } finally {
+            os.close();
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,151 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.LinkedList;
+
+/**
+ * Orders work from two lanes: a priority lane for items that should be
+ * handled as soon as possible (such as fresh edits) and a bulk lane for
+ * everything else.  Items are taken from the priority lane whenever it has
+ * any, and from the bulk lane at no more than a configured rate, so that a
+ * long backfill neither delays urgent items nor runs faster than the
+ * services it calls can comfortably handle.
+ *
+ * The bulk lane is bounded, blocking whoever supplies it when it's full;
+ * the priority lane isn't, since its items are few and mustn't wait.
+ */
+public class PriorityScheduler<T> {
+
+    private final LinkedList<T> priority = new LinkedList<T>();
+
+    private final LinkedList<T> bulk = new LinkedList<T>();
+
+    private final int maxBulk;
+
+    /**
+     * The minimum interval between bulk items, in nanoseconds (0 for no
+     * limit).
+     */
+    private final long bulkIntervalNanos;
+
+    /**
+     * The time (per System.nanoTime()) at which the next bulk item may be
+     * taken.
+     */
+    private long nextBulk = System.nanoTime();
+
+    private boolean finished = false;
+
+    private boolean cancelled = false;
+
+    private long priorityTaken = 0;
+
+    private long bulkTaken = 0;
+
+    /**
+     * @param maxBulk the number of bulk items that may be waiting
+     * @param bulkPerSecond the maximum rate at which bulk items are taken,
+     *        or 0 for no limit
+     */
+    public PriorityScheduler(final int maxBulk, final double bulkPerSecond) {
+        if (maxBulk < 1) {
+            throw new IllegalArgumentException("Queue size must be at least 1!");
+        }
+        if (bulkPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid rate " + bulkPerSecond + "!");
+        }
+        this.maxBulk = maxBulk;
+        this.bulkIntervalNanos = bulkPerSecond == 0 ? 0 : (long) (1000000000L / bulkPerSecond);
+    }
+
+    /**
+     * Adds an item to the priority lane.
+     */
+    public synchronized void putPriority(final T item) {
+        if (cancelled) {
+            return;
+        }
+        if (finished) {
+            throw new IllegalStateException("The scheduler has been finished!");
+        }
+        priority.add(item);
+        notifyAll();
+    }
+
+    /**
+     * Adds an item to the bulk lane, waiting until there is room for it.
+     */
+    public synchronized void putBulk(final T item) throws InterruptedException {
+        while (bulk.size() >= maxBulk && !cancelled) {
+            wait();
+        }
+        if (cancelled) {
+            return;
+        }
+        if (finished) {
+            throw new IllegalStateException("The scheduler has been finished!");
+        }
+        bulk.add(item);
+        notifyAll();
+    }
+
+    /**
+     * Signals that no more items will be added.  Items already added will
+     * still be returned by take().
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Drops every item waiting, along with any added from now on (rather
+     * than blocking whoever adds them), and finishes the scheduler.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        finished = true;
+        priority.clear();
+        bulk.clear();
+        notifyAll();
+    }
+
+    /**
+     * Waits for and returns the next item: the oldest priority item if there
+     * is one, otherwise the oldest bulk item once the rate limit allows.
+     * @return the next item, or null once finish() has been called and
+     *         every item has been taken
+     */
+    public synchronized T take() throws InterruptedException {
+        while (true) {
+            if (!priority.isEmpty()) {
+                priorityTaken ++;
+                return priority.removeFirst();
+            }
+            if (!bulk.isEmpty()) {
+                final long wait = nextBulk - System.nanoTime();
+                if (wait <= 0) {
+                    // don't let an idle period build up a burst
+                    nextBulk = Math.max(nextBulk, System.nanoTime() - bulkIntervalNanos) + bulkIntervalNanos;
+                    bulkTaken ++;
+                    final T item = bulk.removeFirst();
+                    notifyAll();
+                    return item;
+                }
+                // a priority item may arrive in the meantime
+                wait(wait / 1000000L, (int) (wait % 1000000L));
+            } else if (finished) {
+                return null;
+            } else {
+                wait();
+            }
+        }
+    }
+
+    public synchronized long getPriorityCount() {
+        return priorityTaken;
+    }
+
+    public synchronized long getBulkCount() {
+        return bulkTaken;
+    }
+}
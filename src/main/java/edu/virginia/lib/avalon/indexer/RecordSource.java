@@ -0,0 +1,84 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the indexer gets the records it indexes: the values from the hydra
+ * solr core for media objects, collections and master files, and the MODS
+ * for each media object.  LiveRecordSource queries the hydra solr core and
+ * fedora; SnapshotRecordSource reads an offline copy of them so that a full
+ * rebuild needn't touch the production services at all.
+ *
+ * Implementations must be safe for use by many threads at once.  The
+ * Iterables may throw (unchecked) exceptions as they are iterated.
+ */
+public interface RecordSource {
+
+    /**
+     * Returns the MediaObjects modified since the given date, inclusive (or
+     * all of them if the date is null), in order of their modification date
+     * and then id.
+     */
+    Iterable<HydraSolrManager.AvalonRecord> getPidsUpdatedSince(Date date);
+
+    /**
+     * Returns the collections and master files modified since the given
+     * date, inclusive, in order of their modification date and then id.
+     */
+    Iterable<HydraSolrManager.AvalonRecord> getDependenciesUpdatedSince(Date date);
+
+    /**
+     * Finds the MediaObjects that belong to any of the given collections or
+     * have any of the given master files as sections.
+     * @return a Map from id to record, in no particular order
+     */
+    Map<String, HydraSolrManager.AvalonRecord> getDependentMediaObjects(List<String> ids) throws Exception;
+
+    /**
+     * Fetches the records with the given ids.
+     * @return a Map from id to record, in the order the ids were given, that
+     *         omits any id for which no record was found
+     */
+    Map<String, HydraSolrManager.AvalonRecord> getRecordsByIds(List<String> ids) throws Exception;
+
+    /**
+     * Gets the record with the given id or, failing that, the only record
+     * with the given old id.
+     * @return the record, or null if there is none (or more than one with
+     *         the old id)
+     */
+    HydraSolrManager.AvalonRecord getRecord(String id) throws Exception;
+
+    /**
+     * Gets the id and old id (if any) of every MediaObject.
+     */
+    Set<String> getAllMediaObjectIds() throws Exception;
+
+    /**
+     * Gets the MODS for the MediaObject with the given id.
+     * @param cached a previously returned copy, which is returned again if
+     *        the source can tell that it's current; may be null
+     */
+    FedoraClient.Content getMods(String id, FedoraClient.Content cached) throws Exception;
+
+    /**
+     * Passes the MODS for the MediaObject with the given id to the given
+     * reader as it's read, without first reading it into memory.
+     * @return whatever the reader returns
+     */
+    <T> T readMods(String id, FedoraClient.BodyReader<T> reader) throws Exception;
+
+    /**
+     * Returns true if the object with the given (current) id still exists.
+     */
+    boolean exists(String id) throws Exception;
+
+    /**
+     * Releases any resources held by the source.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,502 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An AddDocStore that appends compressed documents to a small number of
+ * large segment files rather than keeping one file per document.
+ *
+ * Each write appends a record (the document name and its deflated content,
+ * with a checksum) to the current segment and then appends the record's
+ * location to an index file.  Replacing a document therefore leaves the
+ * previous version in its segment as garbage; once garbage makes up more
+ * than half of the store the live records are copied into new segments and
+ * the old ones are deleted.  Because nothing is ever overwritten, a write
+ * interrupted by a crash can at worst leave an incomplete record at the end
+ * of a file, which is ignored (and truncated, in the case of the index) when
+ * the store is next opened.
+ *
+ * The index file is read through a memory mapping when the store is opened
+ * and the locations are kept in memory.
+ *
+ * A store opened with openReadOnly() never modifies its files: an incomplete
+ * entry at the end of the index is ignored rather than truncated, flush()
+ * and close() don't compact, and any write fails.  It also opens every
+ * segment its index refers to up front and keeps them open, so a compaction
+ * by an indexer that has the store open at the same time (which deletes the
+ * old segments once the new index is in place) doesn't stop it reading the
+ * documents as they were when it was opened.
+ */
+public class SegmentAddDocStore implements AddDocStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentAddDocStore.class);
+
+    public static final String INDEX_FILENAME = "segments.idx";
+
+    private static final Pattern SEGMENT_FILENAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private static final int RECORD_MAGIC = 0x41444331;
+
+    /**
+     * segment (int), offset (long), length (int) and name length (short).
+     */
+    private static final int INDEX_ENTRY_HEADER_LENGTH = 4 + 8 + 4 + 2;
+
+    /**
+     * Compaction isn't worthwhile until the store holds at least this many
+     * bytes.
+     */
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    /**
+     * The number of times a read-only store tries to open its index and
+     * segments before giving up because they keep being compacted away.
+     */
+    private static final int READ_ONLY_OPEN_ATTEMPTS = 5;
+
+    private final File directory;
+
+    private final long maxSegmentSize;
+
+    private final int syncInterval;
+
+    private final boolean readOnly;
+
+    private final Map<String, Location> locations = new HashMap<String, Location>();
+
+    private final Map<Integer, FileChannel> readers = new HashMap<Integer, FileChannel>();
+
+    private final Deflater deflater = new Deflater();
+
+    private final Inflater inflater = new Inflater();
+
+    private FileChannel index;
+
+    private int activeSegment;
+
+    private FileChannel active;
+
+    private long activeSize;
+
+    private long totalBytes;
+
+    private long liveBytes;
+
+    private int unsyncedWrites;
+
+    /**
+     * Opens (or creates) the store in the given directory.
+     * @param maxSegmentSize the size beyond which a new segment is started
+     * @param syncInterval the number of writes after which the files are
+     *        forced to disk
+     */
+    public SegmentAddDocStore(File directory, long maxSegmentSize, int syncInterval) throws IOException {
+        this(directory, maxSegmentSize, syncInterval, false);
+    }
+
+    /**
+     * Opens an existing store without modifying it in any way.
+     */
+    public static SegmentAddDocStore openReadOnly(File directory) throws IOException {
+        if (!isSegmentStore(directory)) {
+            throw new IOException(directory + " is not a segment store!");
+        }
+        return new SegmentAddDocStore(directory, Long.MAX_VALUE, Integer.MAX_VALUE, true);
+    }
+
+    private SegmentAddDocStore(File directory, long maxSegmentSize, int syncInterval, boolean readOnly)
+            throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.syncInterval = syncInterval;
+        this.readOnly = readOnly;
+        if (!readOnly && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory + "!");
+        }
+        int lastSegment = 0;
+        final File[] files = directory.listFiles();
+        for (File f : files) {
+            final Matcher m = SEGMENT_FILENAME.matcher(f.getName());
+            if (m.matches()) {
+                lastSegment = Math.max(lastSegment, Integer.parseInt(m.group(1)));
+                totalBytes += f.length();
+            }
+        }
+        if (readOnly) {
+            loadIndexForReading();
+        } else {
+            loadIndex();
+            openActiveSegment(lastSegment == 0 ? 1 : lastSegment);
+        }
+        LOGGER.debug("Opened " + directory + " with " + locations.size() + " documents in " + totalBytes + " bytes.");
+    }
+
+    public static boolean isSegmentStore(File directory) {
+        return new File(directory, INDEX_FILENAME).exists();
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(directory, String.format("segment-%06d.dat", segment));
+    }
+
+    private void loadIndex() throws IOException {
+        index = readOnly
+                ? FileChannel.open(new File(directory, INDEX_FILENAME).toPath(), StandardOpenOption.READ)
+                : FileChannel.open(new File(directory, INDEX_FILENAME).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long size = index.size();
+        long valid = 0;
+        if (size > 0) {
+            final MappedByteBuffer buffer = index.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (buffer.remaining() >= INDEX_ENTRY_HEADER_LENGTH) {
+                final Location location = new Location(buffer.getInt(), buffer.getLong(), buffer.getInt());
+                final byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                if (buffer.remaining() < name.length) {
+                    break;
+                }
+                buffer.get(name);
+                if (getSegmentLength(location.segment) < location.offset + location.length) {
+                    // the index was written but the record never made it to disk
+                    LOGGER.warn("Ignoring incomplete record for " + new String(name, "UTF-8") + ".");
+                } else {
+                    final Location previous = locations.put(new String(name, "UTF-8"), location);
+                    liveBytes += location.length - (previous == null ? 0 : previous.length);
+                }
+                valid = buffer.position();
+            }
+        }
+        if (valid < size && readOnly) {
+            LOGGER.warn("Ignoring incomplete entry at the end of " + INDEX_FILENAME + ".");
+        } else if (valid < size) {
+            LOGGER.warn("Truncating incomplete entry at the end of " + INDEX_FILENAME + ".");
+            index.truncate(valid);
+        }
+        index.position(valid);
+    }
+
+    /**
+     * Loads the index of a read-only store, opening every segment it refers
+     * to.  A compaction replaces the index before deleting the old segments,
+     * so if one of those segments is gone before it could be opened, the
+     * index is read again, this time referring to the new segments.
+     */
+    private void loadIndexForReading() throws IOException {
+        for (int attempt = 1; ; attempt ++) {
+            try {
+                loadIndex();
+                return;
+            } catch (NoSuchFileException ex) {
+                if (index != null) {
+                    index.close();
+                }
+                closeReaders();
+                locations.clear();
+                liveBytes = 0;
+                if (attempt == READ_ONLY_OPEN_ATTEMPTS) {
+                    throw ex;
+                }
+                LOGGER.debug(ex.getFile() + " was removed while opening " + directory + ", retrying.");
+            }
+        }
+    }
+
+    /**
+     * Gets the length of a segment referred to by the index.  A read-only
+     * store opens the segment to do so and keeps it open.
+     */
+    private long getSegmentLength(int segment) throws IOException {
+        return readOnly ? getReader(segment).size() : getSegmentFile(segment).length();
+    }
+
+    private FileChannel getReader(int segment) throws IOException {
+        FileChannel channel = readers.get(segment);
+        if (channel == null) {
+            channel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.READ);
+            readers.put(segment, channel);
+        }
+        return channel;
+    }
+
+    private void closeReaders() throws IOException {
+        for (FileChannel channel : readers.values()) {
+            channel.close();
+        }
+        readers.clear();
+    }
+
+    private void openActiveSegment(int segment) throws IOException {
+        activeSegment = segment;
+        active = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = active.size();
+        readers.put(segment, active);
+    }
+
+    public synchronized boolean exists(String name) {
+        return locations.containsKey(name);
+    }
+
+    public synchronized byte[] read(String name) throws IOException {
+        final Location location = locations.get(name);
+        if (location == null) {
+            return null;
+        }
+        final ByteBuffer record = readRecord(location);
+        if (record.getInt() != RECORD_MAGIC) {
+            throw new IOException("Corrupt record for " + name + " in " + getSegmentFile(location.segment) + "!");
+        }
+        final int nameLength = record.getShort() & 0xFFFF;
+        record.position(record.position() + nameLength);
+        final byte[] content = new byte[record.getInt()];
+        final byte[] compressed = new byte[record.getInt()];
+        record.get(compressed);
+        final CRC32 crc = new CRC32();
+        crc.update(compressed);
+        if ((int) crc.getValue() != record.getInt()) {
+            throw new IOException("Checksum mismatch for " + name + " in " + getSegmentFile(location.segment) + "!");
+        }
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int read = 0;
+            while (read < content.length && !inflater.finished()) {
+                read += inflater.inflate(content, read, content.length - read);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Unable to decompress " + name + "!", ex);
+        }
+        return content;
+    }
+
+    private ByteBuffer readRecord(final Location location) throws IOException {
+        final FileChannel channel = getReader(location.segment);
+        final ByteBuffer record = ByteBuffer.allocate(location.length);
+        long position = location.offset;
+        while (record.hasRemaining()) {
+            final int read = channel.read(record, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + getSegmentFile(location.segment) + "!");
+            }
+            position += read;
+        }
+        record.flip();
+        return record;
+    }
+
+    public synchronized void write(String name, byte[] content) throws IOException {
+        checkWritable();
+        final byte[] nameBytes = name.getBytes("UTF-8");
+        final byte[] compressed = deflate(content);
+        final CRC32 crc = new CRC32();
+        crc.update(compressed);
+        final ByteBuffer record = ByteBuffer.allocate(4 + 2 + nameBytes.length + 4 + 4 + compressed.length + 4);
+        record.putInt(RECORD_MAGIC);
+        record.putShort((short) nameBytes.length);
+        record.put(nameBytes);
+        record.putInt(content.length);
+        record.putInt(compressed.length);
+        record.put(compressed);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        append(name, nameBytes, record);
+        if (++ unsyncedWrites >= syncInterval) {
+            sync();
+        }
+    }
+
+    /**
+     * Appends a complete record to the active segment (starting a new one if
+     * it's full) and its location to the index.
+     */
+    private void append(String name, byte[] nameBytes, ByteBuffer record) throws IOException {
+        final int length = record.remaining();
+        if (activeSize > 0 && activeSize + length > maxSegmentSize) {
+            active.force(false);
+            openActiveSegment(activeSegment + 1);
+        }
+        final Location location = new Location(activeSegment, activeSize, length);
+        long position = activeSize;
+        while (record.hasRemaining()) {
+            position += active.write(record, position);
+        }
+        activeSize += length;
+        totalBytes += length;
+
+        final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_HEADER_LENGTH + nameBytes.length);
+        entry.putInt(location.segment);
+        entry.putLong(location.offset);
+        entry.putInt(location.length);
+        entry.putShort((short) nameBytes.length);
+        entry.put(nameBytes);
+        entry.flip();
+        while (entry.hasRemaining()) {
+            index.write(entry);
+        }
+
+        final Location previous = locations.put(name, location);
+        liveBytes += length - (previous == null ? 0 : previous.length);
+    }
+
+    private byte[] deflate(byte[] content) {
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3 + 64);
+        final byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Lists the names of every document in the order in which they appear in
+     * the segments, which is the order in which they're most quickly read.
+     */
+    public synchronized List<String> list() {
+        final List<Map.Entry<String, Location>> entries = getEntriesInStorageOrder();
+        final List<String> names = new ArrayList<String>(entries.size());
+        for (Map.Entry<String, Location> e : entries) {
+            names.add(e.getKey());
+        }
+        return names;
+    }
+
+    private List<Map.Entry<String, Location>> getEntriesInStorageOrder() {
+        final List<Map.Entry<String, Location>> entries = new ArrayList<Map.Entry<String, Location>>(
+                locations.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Location>>() {
+            public int compare(Map.Entry<String, Location> a, Map.Entry<String, Location> b) {
+                if (a.getValue().segment != b.getValue().segment) {
+                    return a.getValue().segment < b.getValue().segment ? -1 : 1;
+                }
+                return Long.compare(a.getValue().offset, b.getValue().offset);
+            }
+        });
+        return entries;
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException(directory + " was opened read-only!");
+        }
+    }
+
+    private void sync() throws IOException {
+        active.force(false);
+        index.force(false);
+        unsyncedWrites = 0;
+    }
+
+    /**
+     * Forces all writes to disk and compacts the store if enough of it is
+     * garbage.  Does nothing if the store was opened read-only.
+     */
+    public synchronized void flush() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        sync();
+        if (totalBytes > MIN_COMPACTION_BYTES && liveBytes * 2 < totalBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies every live record into new segments, writes a new index for
+     * them and then removes the old segments.  The new index replaces the old
+     * one atomically, so if this is interrupted the store is left in either
+     * its original or its compacted state.
+     */
+    public synchronized void compact() throws IOException {
+        checkWritable();
+        sync();
+        final long before = totalBytes;
+        final int lastOldSegment = activeSegment;
+        final List<Map.Entry<String, Location>> entries = getEntriesInStorageOrder();
+
+        final File tempIndexFile = new File(directory, INDEX_FILENAME + ".tmp");
+        final FileChannel oldIndex = index;
+        index = FileChannel.open(tempIndexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        locations.clear();
+        totalBytes = 0;
+        liveBytes = 0;
+        openActiveSegment(lastOldSegment + 1);
+        for (Map.Entry<String, Location> e : entries) {
+            append(e.getKey(), e.getKey().getBytes("UTF-8"), readRecord(e.getValue()));
+        }
+        sync();
+        index.close();
+        oldIndex.close();
+        Files.move(tempIndexFile.toPath(), new File(directory, INDEX_FILENAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = FileChannel.open(new File(directory, INDEX_FILENAME).toPath(), StandardOpenOption.WRITE);
+        index.position(index.size());
+
+        for (File f : directory.listFiles()) {
+            final Matcher m = SEGMENT_FILENAME.matcher(f.getName());
+            if (m.matches() && Integer.parseInt(m.group(1)) <= lastOldSegment) {
+                final FileChannel channel = readers.remove(Integer.parseInt(m.group(1)));
+                if (channel != null) {
+                    channel.close();
+                }
+                if (!f.delete()) {
+                    LOGGER.warn("Unable to delete " + f + " after compaction.");
+                }
+            }
+        }
+        LOGGER.info("Compacted " + directory + " from " + before + " to " + totalBytes + " bytes.");
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        closeReaders();
+        index.close();
+        deflater.end();
+        inflater.end();
+    }
+
+    public String toString() {
+        return directory.getPath();
+    }
+
+    private static class Location {
+
+        private final int segment;
+
+        private final long offset;
+
+        private final int length;
+
+        private Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
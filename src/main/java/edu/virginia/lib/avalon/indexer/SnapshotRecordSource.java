@@ -0,0 +1,380 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.noggit.JSONParser;
+import org.apache.noggit.ObjectBuilder;
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A RecordSource that reads an offline snapshot of the hydra solr core and
+ * of the MODS in fedora, so that a full rebuild can run at the speed of the
+ * local disk, on any machine, without any load on the production services.
+ *
+ * The solr snapshot is a JSON export of the core (optionally gzipped): either
+ * a solr response with the documents in response/docs, such as that from
+ * /select?q=*:*&wt=json with enough rows, or just an array of documents.
+ * The documents need at least the fields in HydraSolrManager.FIELD_LIST and
+ * has_model_ssim.  It's read a document at a time and only the values the
+ * indexer uses are kept in memory.  The MODS are either a directory or a
+ * zip archive holding a file named for the id of each media object with
+ * ".xml" added (in a zip archive, at any path).
+ *
+ * A record is taken to exist if the snapshot has a document for it, so
+ * shadowing deleted records with this source hides any that aren't in the
+ * snapshot.
+ */
+public class SnapshotRecordSource implements RecordSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotRecordSource.class);
+
+    /**
+     * Solr writes dates with as many digits of fractional seconds as are
+     * needed (including none).
+     */
+    private static final Pattern SOLR_DATE = Pattern.compile("(.*T\\d\\d:\\d\\d:\\d\\d)(?:\\.(\\d+))?Z");
+
+    private static final Comparator<HydraSolrManager.AvalonRecord> BY_MODIFIED
+            = new Comparator<HydraSolrManager.AvalonRecord>() {
+        public int compare(HydraSolrManager.AvalonRecord r1, HydraSolrManager.AvalonRecord r2) {
+            final int c = Long.compare(getModified(r1), getModified(r2));
+            return c != 0 ? c : r1.getId().compareTo(r2.getId());
+        }
+    };
+
+    /**
+     * Every record in the snapshot, by id.
+     */
+    private final Map<String, HydraSolrManager.AvalonRecord> records
+            = new HashMap<String, HydraSolrManager.AvalonRecord>();
+
+    /**
+     * The id for each old id, or null for an old id shared by several
+     * records.
+     */
+    private final Map<String, String> oldIds = new HashMap<String, String>();
+
+    /**
+     * The MediaObjects, in order of modification date and then id.
+     */
+    private final List<HydraSolrManager.AvalonRecord> mediaObjects = new ArrayList<HydraSolrManager.AvalonRecord>();
+
+    /**
+     * The collections and master files, in order of modification date and
+     * then id.
+     */
+    private final List<HydraSolrManager.AvalonRecord> dependencies = new ArrayList<HydraSolrManager.AvalonRecord>();
+
+    /**
+     * The ids of the MediaObjects that belong to each collection or have
+     * each master file as a section.
+     */
+    private final Map<String, List<String>> dependents = new HashMap<String, List<String>>();
+
+    private final File modsDirectory;
+
+    private final ZipFile modsArchive;
+
+    /**
+     * The entry in the MODS archive for each id.
+     */
+    private final Map<String, ZipEntry> modsEntries = new HashMap<String, ZipEntry>();
+
+    /**
+     * @param solrExport the JSON export of the hydra solr core
+     * @param mods a directory or zip archive of MODS records
+     */
+    public SnapshotRecordSource(final File solrExport, final File mods) throws IOException {
+        if (!mods.exists()) {
+            throw new FileNotFoundException(mods + " does not exist!");
+        }
+        if (mods.isDirectory()) {
+            modsDirectory = mods;
+            modsArchive = null;
+        } else {
+            modsDirectory = null;
+            modsArchive = new ZipFile(mods);
+            final Enumeration<? extends ZipEntry> entries = modsArchive.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry e = entries.nextElement();
+                final String name = e.getName().substring(e.getName().lastIndexOf('/') + 1);
+                if (!e.isDirectory() && name.endsWith(".xml")) {
+                    modsEntries.put(name.substring(0, name.length() - 4), e);
+                }
+            }
+        }
+        load(solrExport);
+        Collections.sort(mediaObjects, BY_MODIFIED);
+        Collections.sort(dependencies, BY_MODIFIED);
+        LOGGER.info("Loaded " + records.size() + " records (" + mediaObjects.size() + " MediaObjects, "
+                + dependencies.size() + " collections and master files) from " + solrExport + ", with MODS from "
+                + mods + ".");
+    }
+
+    /**
+     * Reads the documents from the solr export.
+     */
+    private void load(final File solrExport) throws IOException {
+        InputStream is = new FileInputStream(solrExport);
+        try {
+            if (solrExport.getName().endsWith(".gz")) {
+                is = new GZIPInputStream(is, 65536);
+            }
+            final JSONParser parser = new JSONParser(new BufferedReader(new InputStreamReader(is, "UTF-8"), 65536));
+            int event = parser.nextEvent();
+            if (event == JSONParser.OBJECT_START) {
+                while (!(event == JSONParser.STRING && parser.wasKey() && parser.getString().equals("docs"))) {
+                    if (event == JSONParser.EOF) {
+                        throw new IOException(solrExport + " has no \"docs\"!");
+                    }
+                    event = parser.nextEvent();
+                }
+                event = parser.nextEvent();
+            }
+            if (event != JSONParser.ARRAY_START) {
+                throw new IOException(solrExport + " is not a solr JSON export!");
+            }
+            while ((event = parser.nextEvent()) != JSONParser.ARRAY_END) {
+                if (event != JSONParser.OBJECT_START) {
+                    throw new IOException("Unexpected " + JSONParser.getEventString(event) + " at position "
+                            + parser.getPosition() + " of " + solrExport + "!");
+                }
+                add(toSolrDocument((Map<?, ?>) ObjectBuilder.getVal(parser)));
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static SolrDocument toSolrDocument(final Map<?, ?> values) {
+        final SolrDocument doc = new SolrDocument();
+        for (Map.Entry<?, ?> e : values.entrySet()) {
+            final String name = String.valueOf(e.getKey());
+            if (e.getValue() instanceof List) {
+                for (Object value : (List<?>) e.getValue()) {
+                    doc.addField(name, value);
+                }
+            } else if (name.equals("system_modified_dtsi") && e.getValue() instanceof String) {
+                doc.addField(name, parseDate((String) e.getValue()));
+            } else {
+                doc.addField(name, e.getValue());
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Parses a date as written by solr, or returns the value as it is if
+     * it's not one.
+     */
+    private static Object parseDate(final String value) {
+        final Matcher m = SOLR_DATE.matcher(value);
+        if (!m.matches()) {
+            return value;
+        }
+        final String millis = ((m.group(2) == null ? "" : m.group(2)) + "000").substring(0, 3);
+        try {
+            return HydraSolrManager.parseISO8601Date(m.group(1) + "." + millis + "Z");
+        } catch (ParseException ex) {
+            return value;
+        }
+    }
+
+    private void add(final SolrDocument doc) {
+        final HydraSolrManager.AvalonRecord record = new HydraSolrManager.AvalonRecord(doc);
+        if (record.getId() == null) {
+            LOGGER.warn("Skipping a document with no id: " + doc);
+            return;
+        }
+        records.put(record.getId(), record);
+        addOldIds(record.getId(), doc.getFieldValues("identifier_ssim"));
+        final Collection<Object> models = doc.getFieldValues("has_model_ssim");
+        if (models == null) {
+            return;
+        }
+        if (models.contains("MediaObject")) {
+            mediaObjects.add(record);
+            addDependent(record.getId(), doc.getFieldValues("isMemberOfCollection_ssim"));
+            addDependent(record.getId(), doc.getFieldValues("section_id_ssim"));
+        }
+        if (models.contains("Admin::Collection") || models.contains("MasterFile")) {
+            dependencies.add(record);
+        }
+    }
+
+    private void addOldIds(final String id, final Collection<Object> values) {
+        if (values != null) {
+            for (Object oldId : values) {
+                oldIds.put(String.valueOf(oldId), oldIds.containsKey(String.valueOf(oldId)) ? null : id);
+            }
+        }
+    }
+
+    private void addDependent(final String id, final Collection<Object> values) {
+        if (values != null) {
+            for (Object value : values) {
+                List<String> ids = dependents.get(String.valueOf(value));
+                if (ids == null) {
+                    ids = new ArrayList<String>(1);
+                    dependents.put(String.valueOf(value), ids);
+                }
+                ids.add(id);
+            }
+        }
+    }
+
+    private static long getModified(final HydraSolrManager.AvalonRecord record) {
+        return record.getModified() == null ? -1 : record.getModified().getTime();
+    }
+
+    /**
+     * Gets the records in the given sorted list modified since the given
+     * date, inclusive (or all of them if the date is null).
+     */
+    private static List<HydraSolrManager.AvalonRecord> getModifiedSince(
+            final List<HydraSolrManager.AvalonRecord> sorted, final Date date) {
+        if (date == null) {
+            return Collections.unmodifiableList(sorted);
+        }
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getModified(sorted.get(mid)) < date.getTime()) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Collections.unmodifiableList(sorted.subList(low, sorted.size()));
+    }
+
+    public Iterable<HydraSolrManager.AvalonRecord> getPidsUpdatedSince(final Date date) {
+        return getModifiedSince(mediaObjects, date);
+    }
+
+    public Iterable<HydraSolrManager.AvalonRecord> getDependenciesUpdatedSince(final Date date) {
+        return getModifiedSince(dependencies, date);
+    }
+
+    public Map<String, HydraSolrManager.AvalonRecord> getDependentMediaObjects(final List<String> ids) {
+        final Map<String, HydraSolrManager.AvalonRecord> results
+                = new LinkedHashMap<String, HydraSolrManager.AvalonRecord>();
+        for (String id : ids) {
+            final List<String> dependentIds = dependents.get(id);
+            if (dependentIds != null) {
+                for (String dependentId : dependentIds) {
+                    results.put(dependentId, records.get(dependentId));
+                }
+            }
+        }
+        return results;
+    }
+
+    public Map<String, HydraSolrManager.AvalonRecord> getRecordsByIds(final List<String> ids) {
+        final Map<String, HydraSolrManager.AvalonRecord> results
+                = new LinkedHashMap<String, HydraSolrManager.AvalonRecord>();
+        for (String id : ids) {
+            if (records.containsKey(id)) {
+                results.put(id, records.get(id));
+            }
+        }
+        return results;
+    }
+
+    public HydraSolrManager.AvalonRecord getRecord(final String id) {
+        final HydraSolrManager.AvalonRecord record = records.get(id);
+        if (record != null) {
+            return record;
+        }
+        final String currentId = oldIds.get(id);
+        return currentId == null ? null : records.get(currentId);
+    }
+
+    public Set<String> getAllMediaObjectIds() {
+        final Set<String> ids = new HashSet<String>();
+        for (HydraSolrManager.AvalonRecord record : mediaObjects) {
+            ids.add(record.getId());
+            if (record.getOldId() != null) {
+                ids.add(record.getOldId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the MODS from the snapshot.  The given cached copy is ignored,
+     * and the content returned has no validators, since there's nothing to
+     * gain by caching it.
+     * @throws FileNotFoundException if the snapshot has no MODS for the id
+     */
+    public FedoraClient.Content getMods(final String id, final FedoraClient.Content cached) throws IOException {
+        final InputStream is = openMods(id);
+        try {
+            return new FedoraClient.Content(IOUtils.toByteArray(is), null, null);
+        } finally {
+            is.close();
+        }
+    }
+
+    public <T> T readMods(final String id, final FedoraClient.BodyReader<T> reader) throws Exception {
+        final InputStream is = openMods(id);
+        try {
+            return reader.read(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @throws FileNotFoundException if the snapshot has no MODS for the id
+     */
+    private InputStream openMods(final String id) throws IOException {
+        if (modsArchive != null) {
+            final ZipEntry e = modsEntries.get(id);
+            if (e == null) {
+                throw new FileNotFoundException("No MODS for " + id + " in " + modsArchive.getName() + "!");
+            }
+            return modsArchive.getInputStream(e);
+        } else {
+            return new FileInputStream(new File(modsDirectory, id + ".xml"));
+        }
+    }
+
+    public boolean exists(final String id) {
+        return records.containsKey(id);
+    }
+
+    public void close() throws IOException {
+        if (modsArchive != null) {
+            modsArchive.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends generated add documents directly to a solr core.  Documents are
+ * combined into batches of a configurable size, each sent as a single update
+ * request by one of a pool of sender threads.  Rather than issuing explicit
+ * commits (or optimizing) the requests ask solr to commit within a given
+ * time, leaving solr to group the resulting commits.
+ */
+public class SolrUpdatePusher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrUpdatePusher.class);
+
+    /**
+     * Notified once the batch containing a document has been sent.
+     */
+    public interface Callback {
+        void sent();
+        void failed(Throwable t);
+    }
+
+    private final SolrServer solr;
+
+    private final int batchSize;
+
+    private final int commitWithinMs;
+
+    private final ExecutorService senders;
+
+    /**
+     * Limits the number of batches waiting to be sent so that the producer
+     * can't get arbitrarily far ahead of solr.
+     */
+    private final Semaphore outstandingBatches;
+
+    private final int maxOutstandingBatches;
+
+    private List<String> batch;
+
+    private List<Callback> batchCallbacks;
+
+    private final AtomicInteger sentDocuments = new AtomicInteger();
+
+    private final AtomicInteger failedDocuments = new AtomicInteger();
+
+    private final long start;
+
+    public SolrUpdatePusher(final String solrUrl, final int batchSize, final int senderCount, final int commitWithinMs) {
+        this(new HttpSolrServer(solrUrl), batchSize, senderCount, commitWithinMs);
+    }
+
+    public SolrUpdatePusher(final SolrServer solr, final int batchSize, final int senderCount, final int commitWithinMs) {
+        if (batchSize < 1 || senderCount < 1) {
+            throw new IllegalArgumentException("Batch size and sender count must be at least 1!");
+        }
+        this.solr = solr;
+        this.batchSize = batchSize;
+        this.commitWithinMs = commitWithinMs;
+        this.senders = Executors.newFixedThreadPool(senderCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "solr-update-sender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.maxOutstandingBatches = senderCount * 2;
+        this.outstandingBatches = new Semaphore(maxOutstandingBatches);
+        this.start = System.currentTimeMillis();
+        newBatch();
+    }
+
+    private void newBatch() {
+        batch = new ArrayList<String>(batchSize);
+        batchCallbacks = new ArrayList<Callback>(batchSize);
+    }
+
+    /**
+     * Adds a serialized add document (as produced by
+     * AvalonIndexer.generateAddDoc()) to the current batch, sending the batch
+     * if it is full.  Blocks if too many batches are already waiting to be
+     * sent.
+     */
+    public synchronized void add(final String addDoc, final Callback callback) throws InterruptedException {
+        batch.add(addDoc);
+        batchCallbacks.add(callback);
+        if (batch.size() >= batchSize) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * Deletes the document with the given id from the solr core.
+     */
+    public void delete(final String id) throws Exception {
+        solr.deleteById(id, commitWithinMs);
+    }
+
+    /**
+     * Sends any partial batch and waits for all batches to be sent.
+     */
+    public synchronized void flush() throws InterruptedException {
+        if (!batch.isEmpty()) {
+            sendBatch();
+        }
+        outstandingBatches.acquire(maxOutstandingBatches);
+        outstandingBatches.release(maxOutstandingBatches);
+    }
+
+    /**
+     * Flushes any remaining documents and stops the sender threads.
+     */
+    public void close() throws InterruptedException {
+        flush();
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+        LOGGER.info(getStatistics());
+    }
+
+    public int getSentDocumentCount() {
+        return sentDocuments.get();
+    }
+
+    public int getFailedDocumentCount() {
+        return failedDocuments.get();
+    }
+
+    /**
+     * Gets a summary of the documents sent so far, and the rate at which
+     * they've been sent.
+     */
+    public String getStatistics() {
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        return sentDocuments.get() + " documents sent to solr (" + failedDocuments.get() + " failed) at "
+                + String.format("%.1f", sentDocuments.get() * 1000d / elapsed) + " docs/sec.";
+    }
+
+    private void sendBatch() throws InterruptedException {
+        final List<String> docs = batch;
+        final List<Callback> callbacks = batchCallbacks;
+        newBatch();
+        outstandingBatches.acquire();
+        senders.execute(new Runnable() {
+            public void run() {
+                try {
+                    ContentStreamUpdateRequest request = new ContentStreamUpdateRequest("/update");
+                    request.addContentStream(new ContentStreamBase.StringStream(toUpdateMessage(docs)));
+                    request.process(solr);
+                    sentDocuments.addAndGet(docs.size());
+                    LOGGER.debug("Sent " + docs.size() + " documents to solr.");
+                    for (Callback c : callbacks) {
+                        c.sent();
+                    }
+                } catch (Throwable t) {
+                    failedDocuments.addAndGet(docs.size());
+                    LOGGER.error("Unable to send " + docs.size() + " documents to solr!", t);
+                    for (Callback c : callbacks) {
+                        c.failed(t);
+                    }
+                } finally {
+                    outstandingBatches.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Combines the doc elements of the given add documents into a single
+     * add message.
+     */
+    private String toUpdateMessage(final List<String> addDocs) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<add commitWithin=\"").append(commitWithinMs).append("\">");
+        for (String addDoc : addDocs) {
+            sb.append(getDocElements(addDoc));
+        }
+        sb.append("</add>");
+        return sb.toString();
+    }
+
+    /**
+     * Gets the content of the add element of the given add document (ie, its
+     * doc elements) so that it may be combined with others.
+     */
+    static String getDocElements(final String addDoc) {
+        final int start = addDoc.indexOf('>', addDoc.indexOf("<add")) + 1;
+        final int end = addDoc.lastIndexOf("</add>");
+        if (start <= 0 || end < start) {
+            throw new IllegalArgumentException("Not an add document: " + addDoc);
+        }
+        return addDoc.substring(start, end);
+    }
+}
@@ -0,0 +1,117 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.Version;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles a stylesheet, keeping the compiled (serialized) form in a file
+ * so that later runs may load it rather than compile it again.  The file is
+ * tagged with a digest of the stylesheet and the saxon version, and is
+ * ignored and rewritten when either differs or it can't be read.
+ */
+public class StylesheetCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StylesheetCache.class);
+
+    /**
+     * Gets the compiled form of the stylesheet resource, from the cache file
+     * if it holds a compilation of this version of the stylesheet, or else
+     * by compiling it and (when possible) saving the result to the cache
+     * file.  If cacheFile is null or the TransformerFactory isn't saxon's,
+     * the stylesheet is simply compiled.
+     */
+    public static Templates getTemplates(final TransformerFactory factory, final String resource,
+            final File cacheFile) throws TransformerConfigurationException, IOException {
+        final URL url = StylesheetCache.class.getClassLoader().getResource(resource);
+        if (url == null) {
+            throw new RuntimeException("Unable to find stylesheet " + resource + "!");
+        }
+        final byte[] stylesheet;
+        final InputStream is = url.openStream();
+        try {
+            stylesheet = IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+        if (cacheFile == null || !(factory instanceof TransformerFactoryImpl)) {
+            return factory.newTemplates(new StreamSource(new ByteArrayInputStream(stylesheet), url.toString()));
+        }
+
+        final TransformerFactoryImpl saxon = (TransformerFactoryImpl) factory;
+        final String key = DigestUtils.shaHex(stylesheet) + " " + Version.getProductVersion();
+        if (cacheFile.exists()) {
+            try {
+                final ObjectInputStream in = new ObjectInputStream(
+                        new BufferedInputStream(new FileInputStream(cacheFile)));
+                try {
+                    if (key.equals(in.readUTF())) {
+                        final Templates templates = PreparedStylesheet.loadCompiledStylesheet(
+                                saxon.getConfiguration(), in);
+                        LOGGER.debug("Loaded compiled " + resource + " from " + cacheFile + ".");
+                        return templates;
+                    }
+                } finally {
+                    in.close();
+                }
+                LOGGER.info(cacheFile + " holds a different version of " + resource + ", it will be replaced.");
+            } catch (Exception ex) {
+                LOGGER.warn("Unable to load compiled stylesheet from " + cacheFile + ", it will be replaced.", ex);
+            }
+        }
+
+        final PreparedStylesheet templates = (PreparedStylesheet) saxon.newTemplates(
+                new StreamSource(new ByteArrayInputStream(stylesheet), url.toString()));
+        try {
+            save(templates, saxon, key, cacheFile);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to save compiled stylesheet to " + cacheFile + ".", ex);
+        }
+        return templates;
+    }
+
+    private static void save(final PreparedStylesheet templates, final TransformerFactoryImpl saxon,
+            final String key, final File cacheFile) throws IOException {
+        // the names in the compiled stylesheet are only meaningful with its
+        // name pool, which is restored along with it when loaded
+        templates.setTargetNamePool(saxon.getConfiguration().getNamePool());
+        // several processes may be compiling it at once
+        final File tempFile = File.createTempFile(cacheFile.getName() + "-", ".tmp",
+                cacheFile.getAbsoluteFile().getParentFile());
+        final ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeUTF(key);
+            out.writeObject(templates);
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Saved compiled stylesheet to " + cacheFile + ".");
+    }
+}
@@ -0,0 +1,149 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes calls to a service (fedora or solr) through a CircuitBreaker and an
+ * adaptive ConcurrencyLimit, retrying calls that fail transiently with an
+ * exponentially increasing, jittered delay.
+ *
+ * A failure is transient if it is an I/O error (a refused connection or a
+ * timeout) or a 5xx, 408 or 429 response; any other response (for instance
+ * a 404) means the service is working and is reported to the caller
+ * immediately.
+ */
+public class Upstream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Upstream.class);
+
+    /**
+     * Notified of each retry (so that retries can be counted).
+     */
+    public interface RetryListener {
+        void retrying(String upstream, int attempt, Exception ex);
+    }
+
+    private final String name;
+
+    private final int maxAttempts;
+
+    private final long baseDelayMs;
+
+    private final long maxDelayMs;
+
+    private final CircuitBreaker breaker;
+
+    private final ConcurrencyLimit limit;
+
+    private final RetryListener listener;
+
+    private final Random random = new Random();
+
+    public Upstream(final String name, final int maxAttempts, final long baseDelayMs, final long maxDelayMs,
+            final CircuitBreaker breaker, final ConcurrencyLimit limit, final RetryListener listener) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt must be allowed!");
+        }
+        this.name = name;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.breaker = breaker;
+        this.limit = limit;
+        this.listener = listener;
+    }
+
+    /**
+     * Makes the call, retrying it if it fails transiently.
+     * @throws Exception the exception thrown by the last attempt, or a
+     *         CircuitOpenException if the service was unavailable for too
+     *         long
+     */
+    public <T> T call(final Callable<T> call) throws Exception {
+        for (int attempt = 1; ; attempt ++) {
+            final long start = limit.acquire();
+            try {
+                breaker.acquire();
+            } catch (Exception ex) {
+                limit.release(start, false);
+                throw ex;
+            }
+            boolean transientFailure = false;
+            try {
+                return call.call();
+            } catch (Exception ex) {
+                transientFailure = isTransient(ex);
+                if (!transientFailure || attempt >= maxAttempts) {
+                    throw ex;
+                }
+                LOGGER.debug("Attempt " + attempt + " of a call to " + name + " failed (" + ex.getMessage()
+                        + "), it will be retried.");
+                if (listener != null) {
+                    listener.retrying(name, attempt, ex);
+                }
+            } finally {
+                limit.release(start, transientFailure);
+                if (transientFailure) {
+                    breaker.failed();
+                } else {
+                    breaker.succeeded();
+                }
+            }
+            Thread.sleep(getDelay(attempt));
+        }
+    }
+
+    /**
+     * Gets the delay before the given (failed) attempt is retried: a random
+     * value up to baseDelayMs * 2^(attempt - 1), capped at maxDelayMs ("full
+     * jitter", so that callers that failed together don't retry together).
+     */
+    long getDelay(final int attempt) {
+        final long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+        synchronized (random) {
+            return ceiling <= 0 ? 0 : 1 + (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * Returns true if the given failure (or its cause) suggests that the
+     * service was unavailable or overloaded rather than that the request
+     * itself was bad.
+     */
+    static boolean isTransient(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CircuitBreaker.CircuitOpenException) {
+                return false;
+            } else if (cause instanceof FedoraClient.StatusException) {
+                return isTransientStatus(((FedoraClient.StatusException) cause).getStatusCode());
+            } else if (cause instanceof SolrException) {
+                return isTransientStatus(((SolrException) cause).code());
+            } else if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTransientStatus(final int status) {
+        return status >= 500 || status == 408 || status == 429;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public ConcurrencyLimit getConcurrencyLimit() {
+        return limit;
+    }
+}
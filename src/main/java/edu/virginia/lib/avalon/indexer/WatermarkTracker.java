@@ -0,0 +1,159 @@
+package edu.virginia.lib.avalon.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Tracks the progress of a run through records enumerated in order of their
+ * modification date, in order to determine the latest modification date up
+ * to which every record has been fully processed (the watermark).  A run
+ * that is interrupted may resume by processing the records modified at or
+ * after the watermark.
+ *
+ * Records may complete in any order (when processed concurrently), so the
+ * watermark only advances past a record once it and every record enumerated
+ * before it have completed.  A record that fails never completes, holding
+ * the watermark at the record before it so that it is retried.
+ *
+ * Because many records may share a modification date, the ids of those
+ * completed with the watermark's date are kept too, so that a run resuming
+ * from the watermark can skip them rather than process them again.
+ */
+public class WatermarkTracker {
+
+    private long nextSequence = 0;
+
+    /**
+     * The modification date and completion state of every record that has
+     * been started but which the watermark hasn't yet passed, by sequence.
+     */
+    private final TreeMap<Long, Progress> inProgress = new TreeMap<Long, Progress>();
+
+    private Date watermark;
+
+    /**
+     * The ids of the records modified at the watermark that have completed.
+     */
+    private final Set<String> completedAtWatermark = new HashSet<String>();
+
+    private boolean advanced = false;
+
+    /**
+     * @param initial the watermark from the previous run (or null)
+     * @param completed the ids of the records modified at that watermark
+     *        that the previous run completed
+     */
+    public WatermarkTracker(Date initial, Collection<String> completed) {
+        this.watermark = initial;
+        completedAtWatermark.addAll(completed);
+    }
+
+    /**
+     * Registers the start of processing for a record that isn't identified
+     * (see start(Date, String)).
+     */
+    public synchronized long start(final Date modified) {
+        return start(modified, null);
+    }
+
+    /**
+     * Registers the start of processing for a record; records must be
+     * started in the order in which they were enumerated.
+     * @param modified the record's modification date, or null if the
+     *        record shouldn't move the watermark
+     * @param id the record's id
+     * @return a ticket to be passed to complete() or fail()
+     */
+    public synchronized long start(final Date modified, final String id) {
+        final long sequence = nextSequence ++;
+        inProgress.put(sequence, new Progress(modified, id));
+        return sequence;
+    }
+
+    /**
+     * Records that the record with the given ticket has been fully processed.
+     */
+    public synchronized void complete(final long ticket) {
+        final Progress p = inProgress.get(ticket);
+        if (p == null) {
+            throw new IllegalStateException("Unknown ticket " + ticket + "!");
+        }
+        p.completed = true;
+        while (!inProgress.isEmpty() && inProgress.firstEntry().getValue().completed) {
+            final Map.Entry<Long, Progress> first = inProgress.pollFirstEntry();
+            final Progress completed = first.getValue();
+            if (completed.modified != null) {
+                if (!completed.modified.equals(watermark)) {
+                    watermark = completed.modified;
+                    completedAtWatermark.clear();
+                }
+                if (completed.id != null) {
+                    completedAtWatermark.add(completed.id);
+                }
+                advanced = true;
+            }
+        }
+    }
+
+    /**
+     * Records that the record with the given ticket could not be processed.
+     * The watermark won't advance past it.
+     */
+    public synchronized void fail(final long ticket) {
+        if (!inProgress.containsKey(ticket)) {
+            throw new IllegalStateException("Unknown ticket " + ticket + "!");
+        }
+    }
+
+    /**
+     * Gets the modification date of the last record before which every
+     * record has completed, or the initial watermark if no record has.
+     */
+    public synchronized Date getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Gets the ids of the records modified at the watermark that have
+     * completed.
+     */
+    public synchronized List<String> getCompletedAtWatermark() {
+        return new ArrayList<String>(completedAtWatermark);
+    }
+
+    /**
+     * Returns true if the given record is known to have completed already
+     * (in this or the previous run), because it was modified at the
+     * watermark and is among those completed at it.
+     */
+    public synchronized boolean hasCompleted(final Date modified, final String id) {
+        return modified != null && modified.equals(watermark) && completedAtWatermark.contains(id);
+    }
+
+    /**
+     * Returns true if the watermark has advanced beyond its initial value.
+     */
+    public synchronized boolean hasAdvanced() {
+        return advanced;
+    }
+
+    private static class Progress {
+
+        private final Date modified;
+
+        private final String id;
+
+        private boolean completed;
+
+        private Progress(Date modified, String id) {
+            this.modified = modified;
+            this.id = id;
+        }
+    }
+}
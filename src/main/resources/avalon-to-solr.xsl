@@ -5,12 +5,21 @@
   xmlns:mods="http://www.loc.gov/mods/v3"
   xmlns:rm="http://hydra-collab.stanford.edu/schemas/rightsMetadata/v1"
   xmlns:dc="http://purl.org/dc/elements/1.1/"
-  xmlns:oai_dc="http://www.openarchives.org/OAI/2.0/oai_dc/" version="2.0">
+  xmlns:xs="http://www.w3.org/2001/XMLSchema"
+  xmlns:oai_dc="http://www.openarchives.org/OAI/2.0/oai_dc/" version="2.0"
+  exclude-result-prefixes="xs">
 
   <xsl:output indent="yes"/>
 
   <xsl:param name="debug" />
 
+  <!-- the date (yyyy-mm-dd) of the indexing run, against which the age of
+       each record is measured so that every record in a run is faceted
+       alike; defaults to today -->
+  <xsl:param name="run-date" select="current-date()" />
+
+  <xsl:variable name="runYear" select="year-from-date(xs:date($run-date))"/>
+
   <xsl:template match="text()" priority="-1"/>
 
   <xsl:variable name="lowercase" select="'abcdefghijklmnopqrstuvwxyz    '"/>
@@ -203,7 +212,7 @@
         <xsl:value-of select="$yearIssued"/>
       </field>
       <xsl:variable name="age"
-        select="number(substring(string(current-date()), 1, 4)) - number($yearIssued)"/>
+        select="$runYear - number($yearIssued)"/>
       <xsl:if test="$age &lt;= 1">
         <field name="published_date_facet">
           <xsl:text>This year</xsl:text>
@@ -0,0 +1,330 @@
+package edu.virginia.lib.avalon.indexer;
+
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.impl.XMLResponseParser;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Checks that the add documents produced by AddDocBuilder and AddDocWriter
+ * are byte for byte the same as those produced the way they were before:
+ * by transforming the parsed MODS into a DOM, appending each field to it and
+ * serializing it with an identity Transformer.  (Any difference would make
+ * every record look changed, and be reindexed, on the first run after an
+ * upgrade.)  The MODS fixtures and a set of field values chosen to exercise
+ * every escaping rule are compared.
+ */
+public class AddDocCompatibilityTest {
+
+    /**
+     * The MODS fixture for each media object in fixtures/solr/records.xml.
+     */
+    private static final Map<String, String> MODS_BY_ID = new LinkedHashMap<String, String>();
+    static {
+        MODS_BY_ID.put("7m01bk63b", "audio-simple");
+        MODS_BY_ID.put("9k41zd52x", "video-rich");
+        MODS_BY_ID.put("3r074v28g", "minimal");
+    }
+
+    /**
+     * Values that are escaped differently in text and in attributes, or not
+     * at all, or that can't be encoded.
+     */
+    private static final String AVALON_URL = "http://avalon.example.edu";
+
+    private static final String[] EDGE_CASES = { "", " ", "\n", "  \t  ", "<a href=\"x\">Q&amp;A</a> > 'b'",
+            "line one\nline two\r\nline three\ttabbed", "\u0001\u0008\u000b\u000c\u000e\u000f\u0010\u001f",
+            "del\u007f c1\u0080\u0085\u009f nbsp\u00a0", "caf\u00e9 \u00fcber \u0152uvre \u20ac \u2028 \ufeff \uffff",
+            "\ud834\udd1e clef", "lone \ud834 high", "lone \udd1e low", "\ud834<", "\ud834\u0000",
+            "raw \u0000<b>&</b>\u0000 escaped <b>" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AvalonIndexer indexer;
+
+    @Before
+    public void setUp() throws Exception {
+        final Properties p = new Properties();
+        p.setProperty("fedoraBase", "http://localhost:1/fedora/");
+        p.setProperty("username", "fedoraAdmin");
+        p.setProperty("password", "fedoraAdmin");
+        p.setProperty("hydra-solr-url", "http://localhost:1/solr/hydra");
+        p.setProperty("avalon-url", AVALON_URL);
+        p.setProperty("collection-blacklist", "bl0001col");
+        p.setProperty("add-doc-repository", folder.newFolder("add-docs").getPath());
+        p.setProperty("add-doc-index-file", folder.getRoot().getPath() + "/add-doc-index.txt");
+        p.setProperty("last-run-file", folder.getRoot().getPath() + "/last-run.txt");
+        indexer = new AvalonIndexer(p);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        indexer.close();
+    }
+
+    @Test
+    public void testFixtures() throws Exception {
+        final Transformer legacy = StylesheetCache.getTemplates(TransformerFactory.newInstance(),
+                "avalon-to-solr.xsl", null).newTransformer();
+        legacy.setParameter("run-date", new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+
+        final Map<String, HydraSolrManager.AvalonRecord> records = readRecords("records");
+        for (Map.Entry<String, String> e : MODS_BY_ID.entrySet()) {
+            final HydraSolrManager.AvalonRecord record = records.get(e.getKey());
+            final HydraSolrManager.AvalonRecord collection = records.get(record.getCollectionId());
+            final List<HydraSolrManager.AvalonRecord> sections = new ArrayList<HydraSolrManager.AvalonRecord>();
+            for (String id : record.getSectionIds()) {
+                sections.add(records.get(id));
+            }
+            final byte[] mods = read("mods/" + e.getValue() + ".xml");
+            for (boolean blacklisted : new boolean[] { false, true }) {
+                final byte[] actual = indexer.generateAddDoc(record,
+                        indexer.getSolrAddDocFromMods(new ByteArrayInputStream(mods)), blacklisted, collection,
+                        sections);
+                final byte[] expected = serializeAddDoc(generateLegacyAddDoc(legacy, mods, record, blacklisted,
+                        collection, sections));
+                assertSameBytes(record.getId() + (blacklisted ? " (blacklisted)" : ""), expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Compares a document with other namespaces and an empty field, and one
+     * with no fields at all.
+     */
+    @Test
+    public void testDocumentStructure() throws Exception {
+        compareEdgeCase("<add xmlns:x=\"urn:x&gt;\"><doc><field name=\"empty\"/></doc></add>", null);
+        compareEdgeCase("<add><doc/></add>", null);
+    }
+
+    /**
+     * Compares a document with a field whose name, value and boost are each
+     * edge case in turn.
+     */
+    @Test
+    public void testEscaping() throws Exception {
+        for (String value : EDGE_CASES) {
+            compareEdgeCase("<add><doc/></add>", value);
+        }
+    }
+
+    private void compareEdgeCase(final String source, final String value) throws Exception {
+        final Transformer identity = TransformerFactory.newInstance().newTransformer();
+        final AddDocBuilder builder = new AddDocBuilder();
+        identity.transform(new StreamSource(new StringReader(source)), new SAXResult(builder.getContentHandler()));
+        final DOMResult result = new DOMResult();
+        identity.transform(new StreamSource(new StringReader(source)), result);
+        final Document doc = (Document) result.getNode();
+        if (value != null) {
+            builder.addField(value, "value");
+            builder.addField("value", value);
+            builder.addField("boost", "value", value);
+            addField(doc, value, "value", null);
+            addField(doc, "value", value, null);
+            addField(doc, "boost", "value", value);
+        }
+        assertSameBytes(value == null ? source : Arrays.toString(value.toCharArray()), serializeAddDoc(doc),
+                new AddDocWriter().write(builder));
+    }
+
+    private static void assertSameBytes(final String name, final byte[] expected, final byte[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            int offset = 0;
+            while (offset < expected.length && offset < actual.length && expected[offset] == actual[offset]) {
+                offset ++;
+            }
+            fail(name + " differs at byte " + offset + ":\n  expected: " + excerpt(expected, offset)
+                    + "\n  actual:   " + excerpt(actual, offset));
+        }
+    }
+
+    private static String excerpt(final byte[] bytes, final int offset) {
+        final int start = Math.max(0, offset - 40);
+        final int end = Math.min(bytes.length, offset + 40);
+        return Arrays.toString(new String(bytes, start, end - start, StandardCharsets.UTF_8).toCharArray());
+    }
+
+    /**
+     * The previous AvalonIndexer.getSolrAddDocFromMods() and
+     * generateAddDoc(), with the blacklist check and the solr lookups of the
+     * collection and sections done by the caller.
+     */
+    private static Document generateLegacyAddDoc(final Transformer transformer, final byte[] mods,
+            final HydraSolrManager.AvalonRecord rec, final boolean blacklisted,
+            final HydraSolrManager.AvalonRecord collection, final List<HydraSolrManager.AvalonRecord> sections)
+            throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        DocumentBuilder b = f.newDocumentBuilder();
+        DOMResult result = new DOMResult();
+        transformer.transform(new DOMSource(b.parse(new ByteArrayInputStream(mods))), result);
+        Document doc = (Document) result.getNode();
+
+        final String oldId = rec.getOldId();
+        final String id = rec.getId();
+        addField(doc, "id", namespaceId(oldId != null ? oldId : id));
+        addField(doc, "id_text", namespaceId(oldId != null ? oldId : id));
+        addField(doc, "avalon_url_display", AVALON_URL);
+        addField(doc, "duration_display", rec.getDuration());
+        addField(doc, "format_facet", "Online");
+        if (rec.isMovingImage()) {
+            addField(doc, "format_facet", "Online Video");
+            addField(doc, "format_text", "Online Video");
+            addField(doc, "format_facet", "Video");
+        }
+        if (rec.isAudioRecording()) {
+            addField(doc, "format_facet", "Streaming Audio");
+            addField(doc, "format_text", "Streaming Audio");
+            addField(doc, "format_text", "Sound Recording");
+        }
+        if (blacklisted) {
+            addField(doc, "shadowed_location_facet", "HIDDEN");
+        } else if (!rec.isPublished()) {
+            addField(doc, "shadowed_location_facet", "HIDDEN");
+        } else if (rec.isHidden()) {
+            addField(doc, "shadowed_location_facet", "UNDISCOVERABLE");
+        } else {
+            addField(doc, "shadowed_location_facet", "VISIBLE");
+        }
+
+        addField(doc, "digital_collection_facet", collection.getName());
+        addField(doc, "digital_collection_text", collection.getName(), "0.25");
+        addField(doc, "unit_display", collection.getUnit());
+        addField(doc, "unit_text", collection.getUnit(), "0.25");
+
+        // For each section...
+        boolean thumb = false;
+        for (HydraSolrManager.AvalonRecord part : sections) {
+            if (!thumb && part.hasThumbnail()) {
+                addField(doc, "thumbnail_url_display", AVALON_URL + "/master_files/" + part.getId() + "/thumbnail");
+                thumb = true;
+            }
+            addField(doc, "part_pid_display", part.getId());
+            addField(doc, "part_duration_display", part.getDuration());
+            addField(doc, "display_aspect_ratio_display", part.getAspectRatio());
+            addField(doc, "part_label_display", part.getTitle());
+        }
+        return doc;
+    }
+
+    private static String namespaceId(final String id) {
+        if (id.startsWith("avalon:")) {
+            return id;
+        } else {
+            return "avalon:" + id;
+        }
+    }
+
+    private static void addField(Document doc, final String name, final String value) {
+        addField(doc, name, value, null);
+    }
+
+    /**
+     * The previous AvalonIndexer.addField().
+     */
+    private static void addField(Document doc, final String name, final String value, final String boost) {
+        if (value == null) {
+            return;
+        }
+        Element field = doc.createElement("field");
+        field.setAttribute("name", name);
+        if (boost != null) {
+            field.setAttribute("boost", boost);
+        }
+        field.appendChild(doc.createTextNode(value));
+        ((Element) doc.getDocumentElement().getElementsByTagName("doc").item(0)).appendChild(field);
+    }
+
+    /**
+     * The previous AvalonIndexer.serializeAddDoc(), encoded as it was when
+     * written.
+     */
+    private static byte[] serializeAddDoc(Document doc) throws Exception {
+        DOMSource domSource = new DOMSource(doc);
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        StringWriter sw = new StringWriter();
+        StreamResult sr = new StreamResult(sw);
+        transformer.transform(domSource, sr);
+        return sw.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] read(final String path) throws IOException {
+        final InputStream is = AddDocCompatibilityTest.class.getClassLoader().getResourceAsStream("fixtures/" + path);
+        if (is == null) {
+            throw new IOException("No fixture found at " + path + "!");
+        }
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads the records in a solr response fixture (in solr's XML response
+     * format).
+     */
+    private static Map<String, HydraSolrManager.AvalonRecord> readRecords(final String name) throws IOException {
+        final InputStream is = AddDocCompatibilityTest.class.getClassLoader().getResourceAsStream(
+                "fixtures/solr/" + name + ".xml");
+        if (is == null) {
+            throw new IOException("No solr fixture found named " + name + "!");
+        }
+        final Map<String, HydraSolrManager.AvalonRecord> records
+                = new LinkedHashMap<String, HydraSolrManager.AvalonRecord>();
+        try {
+            final QueryResponse response = new QueryResponse(
+                    new XMLResponseParser().processResponse(new InputStreamReader(is, "UTF-8")), null);
+            for (SolrDocument doc : response.getResults()) {
+                final HydraSolrManager.AvalonRecord record = new HydraSolrManager.AvalonRecord(doc);
+                records.put(record.getId(), record);
+            }
+        } finally {
+            is.close();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,279 @@
+package edu.virginia.lib.avalon.indexer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a SegmentAddDocStore returns what was last written under each
+ * name, survives being reopened after a write was cut short, rejects a
+ * record whose checksum doesn't match, and compacts without losing anything
+ * (including for a read-only store that was opened before the compaction).
+ */
+public class SegmentAddDocStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(folder.getRoot(), "segments");
+    }
+
+    @Test
+    public void testWriteReplaceAndReopen() throws Exception {
+        SegmentAddDocStore store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        store.write("a", content("a", 1));
+        store.write("b", content("b", 1));
+        store.write("a", content("a", 2));
+        assertArrayEquals(content("a", 2), store.read("a"));
+        assertArrayEquals(content("b", 1), store.read("b"));
+        assertNull(store.read("c"));
+        assertFalse(store.exists("c"));
+        assertEquals(Arrays.asList("b", "a"), store.list());
+        store.close();
+
+        store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        assertArrayEquals(content("a", 2), store.read("a"));
+        assertArrayEquals(content("b", 1), store.read("b"));
+        assertEquals(Arrays.asList("b", "a"), store.list());
+        store.close();
+    }
+
+    @Test
+    public void testNewSegments() throws Exception {
+        final SegmentAddDocStore store = new SegmentAddDocStore(directory, 1024, 10);
+        for (int i = 0; i < 10; i ++) {
+            store.write("doc" + i, random(i, 600));
+        }
+        store.close();
+        assertEquals(10, segmentFiles().size());
+
+        final SegmentAddDocStore reopened = new SegmentAddDocStore(directory, 1024, 10);
+        for (int i = 0; i < 10; i ++) {
+            assertArrayEquals(random(i, 600), reopened.read("doc" + i));
+        }
+        reopened.close();
+    }
+
+    /**
+     * An index entry cut short is ignored by a read-only store and truncated
+     * by a writable one, which then carries on appending after it.
+     */
+    @Test
+    public void testTruncatedIndex() throws Exception {
+        SegmentAddDocStore store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        store.write("a", content("a", 1));
+        store.write("b", content("b", 1));
+        store.close();
+        final File index = new File(directory, SegmentAddDocStore.INDEX_FILENAME);
+        truncate(index, 3);
+        final long truncatedLength = index.length();
+
+        store = SegmentAddDocStore.openReadOnly(directory);
+        assertArrayEquals(content("a", 1), store.read("a"));
+        assertFalse(store.exists("b"));
+        store.close();
+        assertEquals(truncatedLength, index.length());
+
+        store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        assertFalse(store.exists("b"));
+        assertTrue(index.length() < truncatedLength);
+        store.write("b", content("b", 2));
+        store.close();
+
+        store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        assertArrayEquals(content("a", 1), store.read("a"));
+        assertArrayEquals(content("b", 2), store.read("b"));
+        store.close();
+    }
+
+    /**
+     * A record cut short in its segment is ignored, leaving the version
+     * written before it in place.
+     */
+    @Test
+    public void testTruncatedSegment() throws Exception {
+        SegmentAddDocStore store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        store.write("a", content("a", 1));
+        store.write("a", content("a", 2));
+        store.close();
+        truncate(segmentFiles().get(0), 5);
+
+        store = SegmentAddDocStore.openReadOnly(directory);
+        assertArrayEquals(content("a", 1), store.read("a"));
+        store.close();
+
+        store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        assertArrayEquals(content("a", 1), store.read("a"));
+        store.write("a", content("a", 3));
+        store.close();
+
+        store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        assertArrayEquals(content("a", 3), store.read("a"));
+        store.close();
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        SegmentAddDocStore store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        store.write("a", content("a", 1));
+        store.close();
+        final RandomAccessFile segment = new RandomAccessFile(segmentFiles().get(0), "rw");
+        try {
+            segment.seek(segment.length() - 1);
+            final int last = segment.read();
+            segment.seek(segment.length() - 1);
+            segment.write(last ^ 0xFF);
+        } finally {
+            segment.close();
+        }
+
+        store = SegmentAddDocStore.openReadOnly(directory);
+        try {
+            store.read("a");
+            fail("A corrupt record was read!");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Checksum mismatch for a "));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        SegmentAddDocStore store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        store.write("a", content("a", 1));
+        store.close();
+
+        store = SegmentAddDocStore.openReadOnly(directory);
+        try {
+            store.write("b", content("b", 1));
+            fail("A read-only store was written!");
+        } catch (IOException ex) {
+            // expected
+        }
+        try {
+            store.compact();
+            fail("A read-only store was compacted!");
+        } catch (IOException ex) {
+            // expected
+        }
+        store.close();
+
+        store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        assertFalse(store.exists("b"));
+        store.close();
+    }
+
+    /**
+     * Compacting keeps only the latest version of each document in new
+     * segments and removes the old ones, while a read-only store opened
+     * beforehand still reads every document from the segments it has open.
+     */
+    @Test
+    public void testCompact() throws Exception {
+        final SegmentAddDocStore store = new SegmentAddDocStore(directory, 16 * 1024, 10);
+        for (int version = 1; version <= 3; version ++) {
+            for (int i = 0; i < 20; i ++) {
+                store.write("doc" + i, random(i * 10 + version, 4000));
+            }
+        }
+        store.flush();
+        final List<File> before = segmentFiles();
+        final SegmentAddDocStore reader = SegmentAddDocStore.openReadOnly(directory);
+
+        store.compact();
+        final List<File> after = segmentFiles();
+        for (File f : before) {
+            assertFalse(f + " wasn't removed.", f.exists());
+        }
+        assertTrue(after.size() < before.size());
+        for (int i = 0; i < 20; i ++) {
+            assertArrayEquals(random(i * 10 + 3, 4000), store.read("doc" + i));
+            assertArrayEquals(random(i * 10 + 3, 4000), reader.read("doc" + i));
+        }
+        reader.close();
+        store.write("doc0", random(4, 4000));
+        store.close();
+
+        final SegmentAddDocStore reopened = SegmentAddDocStore.openReadOnly(directory);
+        assertEquals(20, reopened.list().size());
+        assertArrayEquals(random(4, 4000), reopened.read("doc0"));
+        for (int i = 1; i < 20; i ++) {
+            assertArrayEquals(random(i * 10 + 3, 4000), reopened.read("doc" + i));
+        }
+        reopened.close();
+    }
+
+    /**
+     * A segment that the index refers to but that doesn't exist can only
+     * have been removed by a compaction, after which the index would refer
+     * to the new segments; if it still doesn't, opening fails.
+     */
+    @Test
+    public void testMissingSegment() throws Exception {
+        final SegmentAddDocStore store = new SegmentAddDocStore(directory, 64 * 1024, 10);
+        store.write("a", content("a", 1));
+        store.close();
+        assertTrue(segmentFiles().get(0).delete());
+        try {
+            SegmentAddDocStore.openReadOnly(directory);
+            fail("A store missing a segment was opened!");
+        } catch (NoSuchFileException ex) {
+            // expected
+        }
+    }
+
+    private List<File> segmentFiles() {
+        final List<File> segments = new ArrayList<File>();
+        for (File f : directory.listFiles()) {
+            if (f.getName().matches("segment-\\d+\\.dat")) {
+                segments.add(f);
+            }
+        }
+        return segments;
+    }
+
+    private static void truncate(final File file, final int bytes) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] content(final String name, final int version) throws IOException {
+        return ("<add><doc><field name=\"id\">" + name + "</field><field name=\"version\">" + version
+                + "</field></doc></add>").getBytes("UTF-8");
+    }
+
+    /**
+     * Incompressible content, so that the size of the segments is predictable.
+     */
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,114 @@
+package edu.virginia.lib.avalon.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the watermark only advances past records that have completed
+ * along with every record enumerated before them, and that what a run saves
+ * lets the next one resume without reprocessing the records it completed.
+ */
+public class WatermarkTrackerTest {
+
+    private static final Date T1 = new Date(1000000000000L);
+
+    private static final Date T2 = new Date(1000000001000L);
+
+    private static final Date T3 = new Date(1000000002000L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOutOfOrderCompletion() {
+        final WatermarkTracker tracker = new WatermarkTracker(null, Collections.<String>emptyList());
+        final long a = tracker.start(T1, "a");
+        final long b = tracker.start(T2, "b");
+        final long c = tracker.start(T3, "c");
+
+        tracker.complete(c);
+        tracker.complete(b);
+        assertNull(tracker.getWatermark());
+        assertFalse(tracker.hasAdvanced());
+
+        tracker.complete(a);
+        assertEquals(T3, tracker.getWatermark());
+        assertEquals(Arrays.asList("c"), tracker.getCompletedAtWatermark());
+        assertTrue(tracker.hasAdvanced());
+    }
+
+    @Test
+    public void testFailureHoldsWatermark() {
+        final WatermarkTracker tracker = new WatermarkTracker(T1, Collections.<String>emptyList());
+        final long a = tracker.start(T2, "a");
+        final long b = tracker.start(T2, "b");
+        final long c = tracker.start(T3, "c");
+
+        tracker.complete(a);
+        tracker.fail(b);
+        tracker.complete(c);
+        assertEquals(T2, tracker.getWatermark());
+        assertEquals(Arrays.asList("a"), tracker.getCompletedAtWatermark());
+        assertTrue(tracker.hasCompleted(T2, "a"));
+        assertFalse(tracker.hasCompleted(T2, "b"));
+        assertFalse(tracker.hasCompleted(T3, "c"));
+    }
+
+    @Test
+    public void testUnidentifiedRecordsDontMoveWatermark() {
+        final WatermarkTracker tracker = new WatermarkTracker(T1, Arrays.asList("x"));
+        tracker.complete(tracker.start(null));
+        assertEquals(T1, tracker.getWatermark());
+        assertTrue(tracker.hasCompleted(T1, "x"));
+        assertFalse(tracker.hasAdvanced());
+    }
+
+    @Test
+    public void testCompletedAtWatermarkSurvivesReload() throws Exception {
+        final WatermarkTracker tracker = new WatermarkTracker(null, Collections.<String>emptyList());
+        tracker.complete(tracker.start(T1, "a"));
+        tracker.complete(tracker.start(T2, "b"));
+        tracker.complete(tracker.start(T2, "c"));
+        tracker.fail(tracker.start(T2, "d"));
+
+        final File file = new File(folder.getRoot(), "last-run.txt");
+        AvalonIndexer.saveDate(file, tracker.getWatermark(), tracker.getCompletedAtWatermark());
+        final WatermarkTracker resumed = new WatermarkTracker(AvalonIndexer.readDate(file),
+                AvalonIndexer.readIds(file));
+        assertEquals(T2, resumed.getWatermark());
+        assertEquals(new HashSet<String>(Arrays.asList("b", "c")),
+                new HashSet<String>(resumed.getCompletedAtWatermark()));
+        assertTrue(resumed.hasCompleted(T2, "b"));
+        assertTrue(resumed.hasCompleted(T2, "c"));
+        assertFalse(resumed.hasCompleted(T2, "d"));
+        assertFalse(resumed.hasCompleted(T1, "a"));
+        assertFalse(resumed.hasAdvanced());
+
+        // once the resumed run moves past the saved date, its ids no longer apply
+        resumed.complete(resumed.start(T2, "d"));
+        resumed.complete(resumed.start(T3, "e"));
+        assertEquals(T3, resumed.getWatermark());
+        assertEquals(Arrays.asList("e"), resumed.getCompletedAtWatermark());
+        assertFalse(resumed.hasCompleted(T2, "b"));
+    }
+
+    @Test
+    public void testReloadWithoutFile() throws Exception {
+        final File file = new File(folder.getRoot(), "missing.txt");
+        assertNull(AvalonIndexer.readDate(file));
+        assertTrue(AvalonIndexer.readIds(file).isEmpty());
+    }
+
+}